@@ -0,0 +1,32 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DisplayBenchmark {
+    // IBM Logo runs in 64x32, rockto switches to 128x64
+    @Param({ "tests/IBM Logo.ch8", "games/schip/rockto.ch8" })
+    public String rom;
+
+    private Emulator _emulator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _emulator = new Emulator();
+        _emulator.loadRom(Programs.romDirectory().resolve(rom).toString());
+        _emulator.runInstructions(100_000);
+    }
+
+    @Benchmark
+    public byte[] getDisplay() {
+        return _emulator.getDisplay();
+    }
+}
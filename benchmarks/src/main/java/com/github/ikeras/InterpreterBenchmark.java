@@ -0,0 +1,115 @@
+package com.github.ikeras;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+    private static final int REPEAT = 64;
+    private static final int SUBROUTINE = 0x700;
+    private static final int[] PROLOGUE = new int[] {
+        0x6005, // V0 = 5
+        0x610c, // V1 = 12
+        0x6203, // V2 = 3
+        0xa800, // I = 0x800
+    };
+
+    @Param({ "00E0", "1nnn", "2nnn/00EE", "3xkk", "5xy0", "6xkk", "7xkk", "8xy4", "8xy6", "Annn", "Cxkk", "Dxyn", "ExA1", "Fx1E", "Fx33", "Fx55", "Fx65" })
+    public String family;
+
+    private CPU _cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] body;
+        switch (family) {
+            case "00E0":
+                body = new int[] { 0x00e0 };
+                break;
+            case "1nnn":
+                // Each jump lands on the next instruction
+                body = new int[] { 0x1000 };
+                break;
+            case "2nnn/00EE":
+                body = new int[] { 0x2000 | SUBROUTINE };
+                break;
+            case "3xkk":
+                body = new int[] { 0x3006, 0x6005 };
+                break;
+            case "5xy0":
+                body = new int[] { 0x5010, 0x6005 };
+                break;
+            case "6xkk":
+                body = new int[] { 0x6342 };
+                break;
+            case "7xkk":
+                body = new int[] { 0x7301 };
+                break;
+            case "8xy4":
+                body = new int[] { 0x8314 };
+                break;
+            case "8xy6":
+                body = new int[] { 0x8316 };
+                break;
+            case "Annn":
+                body = new int[] { 0xa800 };
+                break;
+            case "Cxkk":
+                body = new int[] { 0xc3ff };
+                break;
+            case "Dxyn":
+                body = new int[] { 0xd015 };
+                break;
+            case "ExA1":
+                body = new int[] { 0xe0a1 };
+                break;
+            case "Fx1E":
+                body = new int[] { 0xf21e, 0xa800 };
+                break;
+            case "Fx33":
+                body = new int[] { 0xf133 };
+                break;
+            case "Fx55":
+                body = new int[] { 0xf255 };
+                break;
+            case "Fx65":
+                body = new int[] { 0xf265 };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode family: " + family);
+        }
+
+        byte[] memory = Programs.loop(PROLOGUE, body, REPEAT);
+        int bodyStart = Programs.START + PROLOGUE.length * 2;
+
+        memory[SUBROUTINE] = 0x00;
+        memory[SUBROUTINE + 1] = (byte)0xee;
+
+        // Point the placeholder jumps at the instruction that follows them so the body runs straight through
+        for (int i = 0; i < body.length * REPEAT; i++) {
+            int address = bodyStart + i * 2;
+            if (memory[address] == 0x10 && memory[address + 1] == 0) {
+                int target = address + 2;
+                memory[address] = (byte)(0x10 | target >> 8);
+                memory[address + 1] = (byte)(target & 0xff);
+            }
+        }
+
+        _cpu = Programs.cpu(memory, PROLOGUE.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT)
+    public void executeNextInstruction() {
+        CPU cpu = _cpu;
+        for (int i = 0; i < REPEAT; i++) {
+            cpu.executeNextInstruction();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.ikeras;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The post-processing kernels on their own and a whole frame through them, every row dirty, into a
+// direct buffer the size of Chip's 640x320 view. A frame has to come in well under a millisecond.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PostProcessBenchmark {
+    private static final int OUTPUT_WIDTH = 640;
+    private static final int OUTPUT_HEIGHT = 320;
+
+    @Param({ "64x32", "128x64" })
+    public String resolution;
+
+    @Param({ "1", "4", "8" })
+    public int persistence;
+
+    private PostProcessor _postProcessor;
+    private final Frame[] _frames = new Frame[] { new Frame(), new Frame() };
+    private int _next;
+    private IntBuffer _pixels;
+    private int _width;
+    private int _pixelCount;
+    private int[] _current;
+    private int[] _oldest;
+    private int[] _sumRed;
+    private int[] _sumGreen;
+    private int[] _sumBlue;
+    private int[] _blended;
+    private int[] _scaledRow;
+    private int[] _columns;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        _width = "128x64".equals(resolution) ? 128 : 64;
+        int height = _width / 2;
+        _pixelCount = _width * height;
+
+        // Two different random frames, alternated so every pixel keeps changing
+        Random random = new Random(1);
+        for (int i = 0; i < _frames.length; i++) {
+            long[] words = _frames[i].getPixels();
+            for (int word = 0; word < words.length; word++) {
+                words[word] = random.nextLong();
+            }
+
+            _frames[i].set(_width, height, i + 1, -1L);
+        }
+
+        _postProcessor = new PostProcessor(Palette.CLASSIC, persistence, OUTPUT_WIDTH);
+        _pixels = ByteBuffer.allocateDirect(OUTPUT_WIDTH * OUTPUT_HEIGHT * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        _current = new int[_pixelCount];
+        _oldest = new int[_pixelCount];
+        for (int i = 0; i < _pixelCount; i++) {
+            _current[i] = random.nextInt() | 0xff000000;
+            _oldest[i] = random.nextInt() | 0xff000000;
+        }
+
+        _sumRed = new int[_pixelCount];
+        _sumGreen = new int[_pixelCount];
+        _sumBlue = new int[_pixelCount];
+        _blended = new int[_pixelCount];
+        _scaledRow = new int[OUTPUT_WIDTH];
+        _columns = new int[OUTPUT_WIDTH];
+        for (int column = 0; column < OUTPUT_WIDTH; column++) {
+            _columns[column] = column * _width / OUTPUT_WIDTH;
+        }
+    }
+
+    @Benchmark
+    public IntBuffer frame() {
+        Frame frame = _frames[_next];
+        _next ^= 1;
+        _postProcessor.write(_pixels, _postProcessor.process(frame, -1L));
+        return _pixels;
+    }
+
+    @Benchmark
+    public int[] blend() {
+        PostProcessor.blend(_current, _oldest, _sumRed, _sumGreen, _sumBlue, _blended, 0, _pixelCount, 65536 / persistence);
+        return _blended;
+    }
+
+    @Benchmark
+    public int[] scaleRows() {
+        for (int offset = 0; offset < _pixelCount; offset += _width) {
+            PostProcessor.scaleRow(_current, offset, _columns, _scaledRow, OUTPUT_WIDTH);
+        }
+
+        return _scaledRow;
+    }
+}
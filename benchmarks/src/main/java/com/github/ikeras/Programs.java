@@ -0,0 +1,60 @@
+package com.github.ikeras;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+final class Programs {
+    static final int START = 0x200;
+    static final int SPRITE_DATA = 0x800;
+
+    private Programs() {
+    }
+
+    // Lays out the given 16-bit instructions from 0x200 onwards
+    static byte[] memory(int... instructions) {
+        byte[] memory = new byte[4 * 1024];
+        int address = START;
+        for (int instruction : instructions) {
+            memory[address++] = (byte)((instruction >> 8) & 0xff);
+            memory[address++] = (byte)(instruction & 0xff);
+        }
+
+        for (int i = 0; i < 32; i++) {
+            memory[SPRITE_DATA + i] = (byte)(0xa5 ^ (i * 0x1b) & 0xff);
+        }
+
+        return memory;
+    }
+
+    // Wraps a body in a prologue and a jump back to the start of the body, so it loops forever
+    static byte[] loop(int[] prologue, int[] body, int repeat) {
+        int[] program = new int[prologue.length + body.length * repeat + 1];
+        System.arraycopy(prologue, 0, program, 0, prologue.length);
+
+        for (int i = 0; i < repeat; i++) {
+            System.arraycopy(body, 0, program, prologue.length + i * body.length, body.length);
+        }
+
+        program[program.length - 1] = 0x1000 | (START + prologue.length * 2);
+        return memory(program);
+    }
+
+    static CPU cpu(byte[] memory, int prologueLength) {
+        return cpu(QuirkProfile.CHIP8, memory, prologueLength);
+    }
+
+    // Memory is grown to the profile's size if needed
+    static CPU cpu(QuirkProfile quirks, byte[] memory, int prologueLength) {
+        CPU cpu = quirks.createCpu(Arrays.copyOf(memory, quirks.getMemorySize()));
+        for (int i = 0; i < prologueLength; i++) {
+            cpu.executeNextInstruction();
+        }
+
+        return cpu;
+    }
+
+    static Path romDirectory() {
+        return Paths.get(System.getProperty("utz.roms", "../roms"));
+    }
+}
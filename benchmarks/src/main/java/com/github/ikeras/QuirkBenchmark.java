@@ -0,0 +1,85 @@
+package com.github.ikeras;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The instructions whose behaviour depends on the quirk profile, under each profile. Compare the
+// CHIP8 row with InterpreterBenchmark to see what the profiles cost the default path.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuirkBenchmark {
+    private static final int REPEAT = 64;
+    private static final int[] PROLOGUE = new int[] {
+        0x6000, // V0 = 0
+        0x6105, // V1 = 5
+        0x6200, // V2 = 0
+        0x6300, // V3 = 0
+        0xa800, // I = 0x800
+    };
+
+    @Param({ "CHIP8", "VIP", "SCHIP" })
+    public QuirkProfile profile;
+
+    @Param({ "8xy1", "8xy6", "8xyE", "Bnnn", "Fx55", "Fx65" })
+    public String family;
+
+    private CPU _cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] body;
+        switch (family) {
+            case "8xy1":
+                body = new int[] { 0x8411 };
+                break;
+            case "8xy6":
+                body = new int[] { 0x8416 };
+                break;
+            case "8xyE":
+                body = new int[] { 0x841e };
+                break;
+            case "Bnnn":
+                // Filled in below to land on the next instruction. V0, V2 and V3 are zero, so that
+                // holds for both Bnnn and SCHIP's Bxnn.
+                body = new int[] { 0xb000 };
+                break;
+            case "Fx55":
+                // I moves under VIP, so it is reset before each store
+                body = new int[] { 0xa800, 0xf255 };
+                break;
+            case "Fx65":
+                body = new int[] { 0xa800, 0xf265 };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode family: " + family);
+        }
+
+        byte[] memory = Programs.loop(PROLOGUE, body, REPEAT);
+        int bodyStart = Programs.START + PROLOGUE.length * 2;
+
+        for (int i = 0; i < body.length * REPEAT; i++) {
+            int address = bodyStart + i * 2;
+            if (memory[address] == (byte)0xb0 && memory[address + 1] == 0) {
+                int target = address + 2;
+                memory[address] = (byte)(0xb0 | target >> 8);
+                memory[address + 1] = (byte)(target & 0xff);
+            }
+        }
+
+        _cpu = Programs.cpu(profile, memory, PROLOGUE.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT)
+    public void executeNextInstruction() {
+        CPU cpu = _cpu;
+        for (int i = 0; i < REPEAT; i++) {
+            cpu.executeNextInstruction();
+        }
+    }
+}
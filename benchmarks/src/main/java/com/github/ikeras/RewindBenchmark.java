@@ -0,0 +1,44 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RewindBenchmark {
+    @Param({ "games/schip/rockto.ch8" })
+    public String rom;
+
+    private CPU _cpu;
+    private RewindBuffer _rewind;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Emulator emulator = new Emulator();
+        emulator.loadRom(Programs.romDirectory().resolve(rom).toString());
+        emulator.runInstructions(100_000);
+
+        byte[] memory = new byte[4 * 1024];
+        _cpu = new CPU(memory);
+        _rewind = new RewindBuffer(_cpu.getStateSize(), 60 * 60, 60 * 60 * _cpu.getStateSize() / 8);
+
+        ByteBuffer state = ByteBuffer.allocate(emulator.getSaveStateSize());
+        emulator.saveState(state);
+        state.flip();
+        _cpu.restoreState(state);
+    }
+
+    // One frame's capture: a save state plus its delta against the keyframe, steady state
+    @Benchmark
+    public void capture() {
+        _cpu.executeNextInstruction();
+        _rewind.capture(_cpu);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RomBenchmark {
+    private static final int INSTRUCTIONS_PER_FRAME = 1000;
+
+    @Param({
+        "tests/IBM Logo.ch8",
+        "tests/BC_test.ch8",
+        "tests/test_opcode.ch8",
+        "tests/BCD Counter Test (by Kyle Saburao)(2019).ch8",
+        "tests/Character Test [by A-KouZ1-2016].ch8",
+        "games/schip/DVN8.ch8",
+        "games/schip/rockto.ch8",
+        "games/schip/sweetcopter.ch8",
+        "games/schip/snake.ch8"
+    })
+    public String rom;
+
+    @Param({ "interpreter", "recompiler" })
+    public String backend;
+
+    private Emulator _emulator;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        // A fresh emulator per iteration keeps long-running ROMs from drifting into idle loops
+        _emulator = new Emulator("recompiler".equals(backend));
+        _emulator.loadRom(Programs.romDirectory().resolve(rom).toString());
+    }
+
+    // A frame ends early while Fx0A waits for a key, so the instructions it actually ran are counted
+    // rather than assumed; JMH reports them per microsecond as runFrame:instructions
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Benchmark
+    public void runFrame(Counters counters) {
+        counters.instructions += _emulator.runFrame(INSTRUCTIONS_PER_FRAME);
+    }
+}
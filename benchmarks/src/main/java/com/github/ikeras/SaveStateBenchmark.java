@@ -0,0 +1,45 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SaveStateBenchmark {
+    @Param({ "games/schip/rockto.ch8" })
+    public String rom;
+
+    private Emulator _emulator;
+    private ByteBuffer _state;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _emulator = new Emulator();
+        _emulator.loadRom(Programs.romDirectory().resolve(rom).toString());
+        _emulator.runInstructions(100_000);
+
+        _state = ByteBuffer.allocateDirect(_emulator.getSaveStateSize());
+        _emulator.saveState(_state);
+    }
+
+    @Benchmark
+    public ByteBuffer save() {
+        _state.clear();
+        _emulator.saveState(_state);
+        return _state;
+    }
+
+    @Benchmark
+    public ByteBuffer restore() {
+        _state.flip();
+        _emulator.restoreState(_state);
+        return _state;
+    }
+}
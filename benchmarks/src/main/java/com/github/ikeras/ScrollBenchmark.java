@@ -0,0 +1,66 @@
+package com.github.ikeras;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScrollBenchmark {
+    private static final int REPEAT = 64;
+
+    @Param({ "scrollDown", "scrollLeft", "scrollRight" })
+    public String direction;
+
+    @Param({ "64x32", "128x64" })
+    public String resolution;
+
+    // XOCHIP works on both of its planes
+    @Param({ "CHIP8", "XOCHIP" })
+    public QuirkProfile profile;
+
+    private CPU _cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int instruction;
+        switch (direction) {
+            case "scrollDown":
+                instruction = 0x00c4;
+                break;
+            case "scrollLeft":
+                instruction = 0x00fc;
+                break;
+            case "scrollRight":
+                instruction = 0x00fb;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown direction: " + direction);
+        }
+
+        int[] prologue = new int[] {
+            "128x64".equals(resolution) ? 0x00ff : 0x00fe,
+            profile == QuirkProfile.XOCHIP ? 0xf301 : 0x0000, // planes 1 and 2, or SYS as a no-op
+            0x6005,
+            0x6107,
+            0xa000 | Programs.SPRITE_DATA,
+            0xd010, // Put something on screen so there is data to move
+        };
+
+        // Redraw between scrolls so the display never settles to all zeroes
+        _cpu = Programs.cpu(profile, Programs.loop(prologue, new int[] { instruction, 0xd010 }, REPEAT / 2), prologue.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT)
+    public void scroll() {
+        CPU cpu = _cpu;
+        for (int i = 0; i < REPEAT; i++) {
+            cpu.executeNextInstruction();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.ikeras;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpriteBenchmark {
+    private static final int REPEAT = 64;
+
+    @Param({ "8x5", "8x15", "16x16" })
+    public String sprite;
+
+    @Param({ "64x32", "128x64" })
+    public String resolution;
+
+    // XOCHIP works on both of its planes
+    @Param({ "CHIP8", "XOCHIP" })
+    public QuirkProfile profile;
+
+    // 13 is deliberately unaligned so sprite rows straddle byte and word boundaries
+    @Param({ "0", "13" })
+    public int x;
+
+    private CPU _cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int n;
+        switch (sprite) {
+            case "8x5":
+                n = 5;
+                break;
+            case "8x15":
+                n = 15;
+                break;
+            case "16x16":
+                n = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sprite: " + sprite);
+        }
+
+        int[] prologue = new int[] {
+            "128x64".equals(resolution) ? 0x00ff : 0x00fe,
+            profile == QuirkProfile.XOCHIP ? 0xf301 : 0x0000, // planes 1 and 2, or SYS as a no-op
+            0x6000 | x,     // V0 = x
+            0x610a,         // V1 = 10
+            0xa000 | Programs.SPRITE_DATA,
+        };
+
+        _cpu = Programs.cpu(profile, Programs.loop(prologue, new int[] { 0xd010 | n }, REPEAT), prologue.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT)
+    public void drawSprite() {
+        CPU cpu = _cpu;
+        for (int i = 0; i < REPEAT; i++) {
+            cpu.executeNextInstruction();
+        }
+    }
+}
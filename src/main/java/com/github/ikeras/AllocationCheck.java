@@ -0,0 +1,157 @@
+package com.github.ikeras;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.commons.cli.*;
+
+// Checks that the emulation core allocates nothing in steady state. Each ROM is warmed up on both
+// backends (so blocks are compiled and lazily created state exists), then run for a number of frames
+// while the thread's allocated bytes are read from com.sun.management.ThreadMXBean. The JVM now and
+// then charges a one-off to the thread (a deoptimization, say), so a ROM gets a few rounds and fails
+// only if none of them comes in at zero.
+public class AllocationCheck {
+    private static final int ROUNDS = 3;
+
+    // Audio is generated as in a real run, then dropped
+    private static final class DiscardingSink implements AudioSink {
+        @Override
+        public void write(byte[] samples, int count) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final class CheckOptions {
+        private final List<Path> _roms;
+        private final int _frames;
+        private final int _instructionsPerSecond;
+        private final QuirkProfile _quirks;
+
+        public CheckOptions(List<Path> roms, int frames, int instructionsPerSecond, QuirkProfile quirks) {
+            _roms = roms;
+            _frames = frames;
+            _instructionsPerSecond = instructionsPerSecond;
+            _quirks = quirks;
+        }
+
+        public List<Path> getRoms() {
+            return _roms;
+        }
+
+        public int getFrames() {
+            return _frames;
+        }
+
+        public int getInstructionsPerSecond() {
+            return _instructionsPerSecond;
+        }
+
+        public QuirkProfile getQuirks() {
+            return _quirks;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AllocationCheck check = new AllocationCheck();
+        CheckOptions options = check.parseArgs(args);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Whatever reading the counter itself costs, so it can be taken off each measurement
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+
+        int failures = 0;
+        for (Path rom : options.getRoms()) {
+            for (boolean useRecompiler : new boolean[] { false, true }) {
+                Emulator emulator = new Emulator(useRecompiler, options.getQuirks());
+                emulator.setRandomSeed(0);
+                emulator.loadRom(rom.toString());
+                emulator.enableRewind(10);
+                emulator.enableAudio(new DiscardingSink());
+                // Video is recorded as in a live session, to a file thrown away afterwards
+                Path video = Files.createTempFile("allocation", ".gif");
+                emulator.startVideo(video, Palette.CLASSIC, 1, false);
+
+                long allocated = Long.MAX_VALUE;
+                try {
+                    run(emulator, options.getFrames(), options.getInstructionsPerSecond());
+
+                    for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+                        before = threads.getThreadAllocatedBytes(threadId);
+                        run(emulator, options.getFrames(), options.getInstructionsPerSecond());
+                        allocated = Math.min(allocated, threads.getThreadAllocatedBytes(threadId) - before - overhead);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.printf("SKIP  %-50s %-11s %s%n", rom, useRecompiler ? "recompiler" : "interpreter", e.getMessage());
+                    continue;
+                } finally {
+                    emulator.stopVideo();
+                    Files.delete(video);
+                }
+
+                if (allocated > 0) {
+                    failures++;
+                }
+
+                System.out.printf("%s  %-50s %-11s %d bytes over %d frames%n",
+                    allocated > 0 ? "FAIL" : "OK  ", rom, useRecompiler ? "recompiler" : "interpreter", allocated, options.getFrames());
+            }
+        }
+
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void run(Emulator emulator, int frames, int instructionsPerSecond) {
+        for (int frame = 0; frame < frames; frame++) {
+            emulator.runFrame(Scheduler.instructionsForFrame(emulator.getFrameNumber(), instructionsPerSecond));
+        }
+    }
+
+    private CheckOptions parseArgs(String[] args) throws Exception {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("f", "frames", true, "Number of 60Hz frames to warm up and then measure (default 3000)");
+        options.addOption("s", "speed", true, "Number of operations per second used to size frames (default 10000)");
+        options.addOption("q", "quirks", true, "Quirk profile to run with: CHIP8, LENIENT, VIP, SCHIP or XOCHIP (default CHIP8)");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            int frames = 3000;
+            int instructionsPerSecond = 10_000;
+            QuirkProfile quirks = QuirkProfile.CHIP8;
+            String[] appArgs = cmd.getArgs();
+
+            if (cmd.hasOption("help") || appArgs.length < 1) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("AllocationCheck [options] <rom or directory>...", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("frames")) {
+                frames = Integer.parseInt(cmd.getOptionValue("frames").trim());
+            }
+
+            if (cmd.hasOption("speed")) {
+                instructionsPerSecond = Integer.parseInt(cmd.getOptionValue("speed").trim());
+            }
+
+            if (cmd.hasOption("quirks")) {
+                quirks = QuirkProfile.parse(cmd.getOptionValue("quirks"));
+            }
+
+            return new CheckOptions(BatchRunner.findRoms(appArgs), frames, instructionsPerSecond, quirks);
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
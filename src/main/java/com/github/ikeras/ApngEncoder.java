@@ -0,0 +1,180 @@
+package com.github.ikeras;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Animated PNG with two bits per pixel indexing the palette, looping forever. The first frame is also
+// the still image that viewers without APNG support show. Each later frame is the band of rows that
+// changed, deflated into an fdAT chunk. Delays are whole 60Hz frames, so timing is exact. The frame
+// count sits in the acTL chunk near the start of the file, and is filled in on close.
+final class ApngEncoder extends VideoEncoder {
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504c5445;
+    private static final int ACTL = 0x6163544c;
+    private static final int FCTL = 0x6663544c;
+    private static final int IDAT = 0x49444154;
+    private static final int FDAT = 0x66644154;
+    private static final int IEND = 0x49454e44;
+    private static final int PIXELS_PER_BYTE = 4;
+    // Signature, then IHDR and PLTE with their 12 bytes of length, type and CRC each
+    private static final int ACTL_OFFSET = SIGNATURE.length + 12 + 13 + 12 + 3 * 4;
+    private static final int MAX_DELAY = 0xffff;
+
+    private final Path _path;
+    private final DataOutputStream _output;
+    private final CRC32 _crc = new CRC32();
+    private final Deflater _deflater = new Deflater();
+    private final int _width;
+    private final int _rowBytes;
+    // Filtered scanlines of the band being written, and its deflated form after four bytes for the
+    // fdAT sequence number
+    private final byte[] _raw;
+    private final byte[] _deflated;
+    private final byte[] _frameControl = new byte[26];
+    private int _sequence;
+    private int _frames;
+
+    ApngEncoder(Path path, Palette palette, int scale) throws IOException {
+        super(scale);
+        _path = path;
+        _width = CANVAS_WIDTH * scale;
+        _rowBytes = 1 + _width / PIXELS_PER_BYTE;
+        _raw = new byte[_rowBytes * CANVAS_HEIGHT * scale];
+        // Deflate grows incompressible data by a few bytes per 16KB block
+        _deflated = new byte[4 + _raw.length + _raw.length / 1000 + 64];
+        _output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+
+        _output.write(SIGNATURE);
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(_width);
+        header.putInt(CANVAS_HEIGHT * scale);
+        // 2 bits per pixel, indexed colour, deflate, adaptive filtering, not interlaced
+        header.put(new byte[] { 2, 3, 0, 0, 0 });
+        writeChunk(_output, IHDR, header.array(), 0, 13);
+
+        byte[] colors = new byte[palette.getColors().length * 3];
+        for (int index = 0; index < palette.getColors().length; index++) {
+            int color = palette.getColors()[index];
+            colors[index * 3] = (byte)(color >>> 16);
+            colors[index * 3 + 1] = (byte)(color >>> 8);
+            colors[index * 3 + 2] = (byte)color;
+        }
+
+        writeChunk(_output, PLTE, colors, 0, colors.length);
+        writeChunk(_output, ACTL, animationControl(0), 0, 8);
+    }
+
+    @Override
+    boolean accepts(long start, long end) {
+        return true;
+    }
+
+    @Override
+    long getMaxFrames() {
+        return MAX_DELAY;
+    }
+
+    @Override
+    void writeFrame(byte[] canvas, int firstRow, int lastRow, long start, long end) throws IOException {
+        int height = (lastRow - firstRow + 1) * _scale;
+
+        ByteBuffer control = ByteBuffer.wrap(_frameControl);
+        control.putInt(_sequence++);
+        control.putInt(_width);
+        control.putInt(height);
+        control.putInt(0);
+        control.putInt(firstRow * _scale);
+        control.putShort((short)(end - start));
+        control.putShort((short)Scheduler.FRAMES_PER_SECOND);
+        // Leave the frame in place, and replace the pixels under it rather than blending
+        control.put((byte)0);
+        control.put((byte)0);
+        writeChunk(_output, FCTL, _frameControl, 0, _frameControl.length);
+
+        int length = 0;
+        for (int row = firstRow * _scale; row < (lastRow + 1) * _scale; row++, length += _rowBytes) {
+            if (row % _scale != 0) {
+                System.arraycopy(_raw, length - _rowBytes, _raw, length, _rowBytes);
+                continue;
+            }
+
+            // No filter, then four pixels to a byte, leftmost in the high bits
+            _raw[length] = 0;
+            int offset = (row / _scale) * CANVAS_WIDTH;
+            int packed = 0;
+            for (int x = 0; x < _width; x++) {
+                packed = packed << 2 | canvas[offset + x / _scale];
+                if ((x & (PIXELS_PER_BYTE - 1)) == PIXELS_PER_BYTE - 1) {
+                    _raw[length + 1 + x / PIXELS_PER_BYTE] = (byte)packed;
+                    packed = 0;
+                }
+            }
+        }
+
+        _deflater.reset();
+        _deflater.setInput(_raw, 0, length);
+        _deflater.finish();
+        int deflated = _deflater.deflate(_deflated, 4, _deflated.length - 4);
+        if (!_deflater.finished()) {
+            throw new IllegalStateException("Deflated frame doesn't fit in " + _deflated.length + " bytes");
+        }
+
+        // The first frame is the default image and goes in IDAT, without a sequence number
+        if (_frames == 0) {
+            writeChunk(_output, IDAT, _deflated, 4, deflated);
+        } else {
+            ByteBuffer.wrap(_deflated).putInt(_sequence++);
+            writeChunk(_output, FDAT, _deflated, 0, 4 + deflated);
+        }
+
+        _frames++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeChunk(_output, IEND, _deflated, 0, 0);
+        } finally {
+            _output.close();
+            _deflater.end();
+        }
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        writeChunk(new DataOutputStream(chunk), ACTL, animationControl(_frames), 0, 8);
+
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(chunk.toByteArray()), ACTL_OFFSET);
+        }
+    }
+
+    // Frame count, then 0 plays for looping forever
+    private static byte[] animationControl(int frames) {
+        return ByteBuffer.allocate(8).putInt(frames).putInt(0).array();
+    }
+
+    // Length, type, data, then the CRC of the type and data
+    private void writeChunk(DataOutputStream output, int type, byte[] data, int offset, int length) throws IOException {
+        output.writeInt(length);
+        output.writeInt(type);
+        output.write(data, offset, length);
+
+        _crc.reset();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            _crc.update(type >>> shift);
+        }
+
+        _crc.update(data, offset, length);
+        output.writeInt((int)_crc.getValue());
+    }
+}
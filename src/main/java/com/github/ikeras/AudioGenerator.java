@@ -0,0 +1,94 @@
+package com.github.ikeras;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+// Turns the sound timer into samples on the emulation thread, one frame at a time: a square wave
+// while the timer is running, or on XO-CHIP the CPU's 1-bit pattern played at its pitch. Every frame
+// is exactly SAMPLES_PER_FRAME samples, and since the timer only counts whole frames, sound starts
+// and stops on frame boundaries: a timer set to n sounds for n * SAMPLES_PER_FRAME samples. The phase
+// carries over from frame to frame so a long tone doesn't click. Nothing is allocated per frame.
+final class AudioGenerator {
+    static final int SAMPLE_RATE = 44100;
+    static final int SAMPLES_PER_FRAME = SAMPLE_RATE / Scheduler.FRAMES_PER_SECOND;
+    static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 8, 1, false, false);
+    static final byte SILENCE = (byte)0x80;
+
+    private static final int BUZZER_HZ = 440;
+    private static final int AMPLITUDE = 40;
+    private static final byte HIGH = (byte)(0x80 + AMPLITUDE);
+    private static final byte LOW = (byte)(0x80 - AMPLITUDE);
+    // Buzzer phase is a fraction of a cycle in 32 bits, so the top bit is the square wave
+    private static final long BUZZER_STEP = ((long)BUZZER_HZ << 32) / SAMPLE_RATE;
+    private static final int PATTERN_BITS = 128;
+    // Pattern phase is a bit position with 16 fractional bits
+    private static final int PATTERN_FRACTION_BITS = 16;
+
+    private final AudioSink _sink;
+    private final byte[] _frame = new byte[SAMPLES_PER_FRAME];
+    private long _buzzerPhase;
+    private long _patternPhase;
+    private int _pitch = -1;
+    private long _patternStep;
+
+    AudioGenerator(AudioSink sink) {
+        _sink = sink;
+    }
+
+    // Call once per frame, before the timers tick
+    void generateFrame(CPU cpu) {
+        if (cpu.getSoundTimer() == 0) {
+            Arrays.fill(_frame, SILENCE);
+        } else {
+            byte[] pattern = cpu.getAudioPattern();
+            if (pattern == null || isSilent(pattern)) {
+                generateBuzzer();
+            } else {
+                generatePattern(pattern, cpu.getPitch());
+            }
+        }
+
+        _sink.write(_frame, SAMPLES_PER_FRAME);
+    }
+
+    private void generateBuzzer() {
+        long phase = _buzzerPhase;
+        for (int sample = 0; sample < SAMPLES_PER_FRAME; sample++) {
+            _frame[sample] = (phase & 0x80000000L) != 0 ? HIGH : LOW;
+            phase += BUZZER_STEP;
+        }
+
+        _buzzerPhase = phase & 0xffffffffL;
+    }
+
+    // The pattern's bits play at 4000 * 2^((pitch - 64) / 48) a second, most significant bit first
+    private void generatePattern(byte[] pattern, int pitch) {
+        if (pitch != _pitch) {
+            _pitch = pitch;
+            double bitsPerSecond = 4000 * Math.pow(2, (pitch - 64) / 48.0);
+            _patternStep = (long)(bitsPerSecond / SAMPLE_RATE * (1 << PATTERN_FRACTION_BITS));
+        }
+
+        long phase = _patternPhase;
+        for (int sample = 0; sample < SAMPLES_PER_FRAME; sample++) {
+            int bit = (int)(phase >>> PATTERN_FRACTION_BITS) & (PATTERN_BITS - 1);
+            _frame[sample] = ((pattern[bit >>> 3] >>> (7 - (bit & 7))) & 1) != 0 ? HIGH : LOW;
+            phase += _patternStep;
+        }
+
+        _patternPhase = phase & (((long)PATTERN_BITS << PATTERN_FRACTION_BITS) - 1);
+    }
+
+    // Before a ROM loads a pattern it is all zeroes, which would never make a sound, so the buzzer
+    // plays instead
+    private static boolean isSilent(byte[] pattern) {
+        for (byte value : pattern) {
+            if (value != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.ikeras;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer, single-consumer ring of samples between the emulation thread and the audio thread.
+// Each side only advances its own counter and reads the other's with acquire/release ordering, so
+// neither side ever blocks or shares a lock with the other. The producer drops whatever doesn't fit
+// rather than waiting for the consumer.
+final class AudioRing {
+    private final byte[] _samples;
+    private final int _mask;
+    // Samples written and read since the start; only the producer sets _written, only the consumer _read
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _read = new AtomicLong();
+    private long _dropped;
+
+    // capacity must be a power of two
+    AudioRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+
+        _samples = new byte[capacity];
+        _mask = capacity - 1;
+    }
+
+    // Producer side. Returns how many samples fitted.
+    int write(byte[] samples, int offset, int count) {
+        long written = _written.getPlain();
+        int free = _samples.length - (int)(written - _read.getAcquire());
+        int accepted = Math.min(count, free);
+
+        int start = (int)written & _mask;
+        int first = Math.min(accepted, _samples.length - start);
+        System.arraycopy(samples, offset, _samples, start, first);
+        System.arraycopy(samples, offset + first, _samples, 0, accepted - first);
+
+        _written.setRelease(written + accepted);
+        _dropped += count - accepted;
+        return accepted;
+    }
+
+    // Producer side: samples that didn't fit
+    long getDropped() {
+        return _dropped;
+    }
+
+    // Consumer side
+    int available() {
+        return (int)(_written.getAcquire() - _read.getPlain());
+    }
+
+    // Consumer side. Returns how many samples were copied, 0 if the ring is empty.
+    int read(byte[] samples, int offset, int count) {
+        long read = _read.getPlain();
+        int taken = Math.min(count, (int)(_written.getAcquire() - read));
+
+        int start = (int)read & _mask;
+        int first = Math.min(taken, _samples.length - start);
+        System.arraycopy(_samples, start, samples, offset, first);
+        System.arraycopy(_samples, 0, samples, offset + first, taken - first);
+
+        _read.setRelease(read + taken);
+        return taken;
+    }
+
+    // Consumer side: throws away the oldest samples
+    void skip(int count) {
+        long read = _read.getPlain();
+        _read.setRelease(read + Math.min(count, (int)(_written.getAcquire() - read)));
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+
+// Where the emulator's sound goes, one frame of 8-bit unsigned samples at a time, always from the
+// emulation thread
+interface AudioSink extends AutoCloseable {
+    void write(byte[] samples, int count);
+
+    @Override
+    void close() throws IOException;
+}
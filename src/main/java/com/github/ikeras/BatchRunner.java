@@ -0,0 +1,362 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.*;
+
+public class BatchRunner {
+    private static final String[] ROM_EXTENSIONS = new String[] { ".ch8", ".c8", ".sc8" };
+
+    private final class BatchOptions {
+        private final List<Path> _roms;
+        private final long _instructions;
+        private final int _frames;
+        private final int _instructionsPerSecond;
+        private final int _threads;
+        private final boolean _useRecompiler;
+        private final boolean _verify;
+        private final long _seed;
+        private final Path _profileDirectory;
+        private final QuirkProfile _quirks;
+        private final Path _wavDirectory;
+
+        public BatchOptions(List<Path> roms, long instructions, int frames, int instructionsPerSecond, int threads, boolean useRecompiler, boolean verify, long seed, Path profileDirectory, QuirkProfile quirks, Path wavDirectory) {
+            _roms = roms;
+            _instructions = instructions;
+            _frames = frames;
+            _instructionsPerSecond = instructionsPerSecond;
+            _threads = threads;
+            _useRecompiler = useRecompiler;
+            _verify = verify;
+            _seed = seed;
+            _profileDirectory = profileDirectory;
+            _quirks = quirks;
+            _wavDirectory = wavDirectory;
+        }
+
+        public List<Path> getRoms() {
+            return _roms;
+        }
+
+        public long getInstructions() {
+            return _instructions;
+        }
+
+        public int getFrames() {
+            return _frames;
+        }
+
+        public int getInstructionsPerSecond() {
+            return _instructionsPerSecond;
+        }
+
+        public int getThreads() {
+            return _threads;
+        }
+
+        public boolean useRecompiler() {
+            return _useRecompiler;
+        }
+
+        public boolean verify() {
+            return _verify;
+        }
+
+        public long getSeed() {
+            return _seed;
+        }
+
+        public Path getProfileDirectory() {
+            return _profileDirectory;
+        }
+
+        public QuirkProfile getQuirks() {
+            return _quirks;
+        }
+
+        public Path getWavDirectory() {
+            return _wavDirectory;
+        }
+    }
+
+    static final class RomResult {
+        private final Path _rom;
+        private final long _instructions;
+        private final long _elapsedNanos;
+        private final long _displayHash;
+        private final Throwable _error;
+
+        RomResult(Path rom, long instructions, long elapsedNanos, long displayHash, Throwable error) {
+            _rom = rom;
+            _instructions = instructions;
+            _elapsedNanos = elapsedNanos;
+            _displayHash = displayHash;
+            _error = error;
+        }
+
+        Path getRom() {
+            return _rom;
+        }
+
+        long getInstructions() {
+            return _instructions;
+        }
+
+        long getElapsedNanos() {
+            return _elapsedNanos;
+        }
+
+        double getInstructionsPerSecond() {
+            return _elapsedNanos == 0 ? 0 : _instructions * 1e9 / _elapsedNanos;
+        }
+
+        long getDisplayHash() {
+            return _displayHash;
+        }
+
+        Throwable getError() {
+            return _error;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchRunner runner = new BatchRunner();
+        BatchOptions options = runner.parseArgs(args);
+        List<RomResult> results = runInParallel(options.getRoms(), options.getThreads(), rom -> runRom(rom, options));
+
+        int failures = 0;
+        long totalInstructions = 0;
+        long totalNanos = 0;
+
+        for (RomResult result : results) {
+            if (result.getError() != null) {
+                failures++;
+                System.out.printf("FAIL  %-50s %s%n", result.getRom(), result.getError());
+                for (Throwable detail : result.getError().getSuppressed()) {
+                    System.out.print(detail.getMessage());
+                }
+            } else {
+                System.out.printf("OK    %-50s %12.0f ips  hash=%016x%n", result.getRom(), result.getInstructionsPerSecond(), result.getDisplayHash());
+            }
+
+            totalInstructions += result.getInstructions();
+            totalNanos += result.getElapsedNanos();
+        }
+
+        System.out.printf("%d ROMs, %d failed, %d instructions, %.0f aggregate ips per worker%n",
+            results.size(), failures, totalInstructions, totalNanos == 0 ? 0 : totalInstructions * 1e9 / totalNanos);
+
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    interface RomTask {
+        RomResult run(Path rom);
+    }
+
+    static List<RomResult> runInParallel(List<Path> roms, int threads, RomTask task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<RomResult>> futures = new ArrayList<>();
+
+        try {
+            for (Path rom : roms) {
+                futures.add(executor.submit(() -> task.run(rom)));
+            }
+
+            List<RomResult> results = new ArrayList<>();
+            for (Future<RomResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Batch task failed unexpectedly", e.getCause());
+                }
+            }
+
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static List<Path> findRoms(String[] paths) throws IOException {
+        List<Path> roms = new ArrayList<>();
+
+        for (String path : paths) {
+            Path root = Paths.get(path);
+            if (Files.isDirectory(root)) {
+                try (Stream<Path> files = Files.walk(root)) {
+                    roms.addAll(files.filter(Files::isRegularFile).filter(BatchRunner::isRom).collect(Collectors.toList()));
+                }
+            } else {
+                roms.add(root);
+            }
+        }
+
+        roms.sort(null);
+        return roms;
+    }
+
+    static boolean isRom(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        for (String extension : ROM_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static RomResult runRom(Path rom, BatchOptions options) {
+        Emulator emulator = new Emulator(options.useRecompiler(), options.getQuirks());
+        emulator.setRandomSeed(options.getSeed());
+        long executed = 0;
+        long startTime = System.nanoTime();
+
+        try {
+            emulator.loadRom(rom.toString());
+            if (options.getProfileDirectory() != null) {
+                emulator.startProfiling(Profiler.DEFAULT_SAMPLE_INTERVAL);
+            }
+
+            if (options.getWavDirectory() != null) {
+                try (WavSink wav = new WavSink(options.getWavDirectory().resolve(rom.getFileName() + ".wav"))) {
+                    emulator.enableAudio(wav);
+                    executed = run(emulator, options);
+                }
+            } else {
+                executed = run(emulator, options);
+            }
+
+            long elapsed = System.nanoTime() - startTime;
+
+            if (options.getProfileDirectory() != null) {
+                String name = rom.getFileName().toString();
+                emulator.writeProfile(options.getProfileDirectory().resolve(name + ".pcs.txt"), options.getProfileDirectory().resolve(name + ".folded"));
+            }
+
+            if (options.verify()) {
+                // Replay on the other backend and insist on identical architectural state
+                Emulator reference = new Emulator(!options.useRecompiler(), options.getQuirks());
+                reference.setRandomSeed(options.getSeed());
+                reference.loadRom(rom.toString());
+                run(reference, options);
+
+                if (reference.getStateDigest() != emulator.getStateDigest()) {
+                    throw new IllegalStateException("Interpreter and recompiler state differ");
+                }
+            }
+
+            return new RomResult(rom, executed, elapsed, Hashing.fnv1a(emulator.getDisplay()), null);
+        } catch (Exception e) {
+            return new RomResult(rom, executed, System.nanoTime() - startTime, 0, e);
+        }
+    }
+
+    // Returns the instructions actually executed, which falls short of the budget while a ROM waits
+    // for a key
+    private static long run(Emulator emulator, BatchOptions options) {
+        if (options.getFrames() > 0) {
+            int instructionsPerFrame = Math.max(1, options.getInstructionsPerSecond() / 60);
+            long executed = 0;
+            for (int frame = 0; frame < options.getFrames(); frame++) {
+                executed += emulator.runFrame(instructionsPerFrame);
+            }
+
+            return executed;
+        }
+
+        return emulator.runInstructions(options.getInstructions());
+    }
+
+    private BatchOptions parseArgs(String[] args) throws IOException {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("i", "instructions", true, "Number of instructions to execute per ROM (default 1000000)");
+        options.addOption("f", "frames", true, "Number of 60Hz frames to execute per ROM instead of a fixed instruction count");
+        options.addOption("s", "speed", true, "Number of operations per second used to size frames");
+        options.addOption("t", "threads", true, "Number of worker threads (default: all available processors)");
+        options.addOption("j", "jit", false, "Execute through the block recompiler instead of the interpreter");
+        options.addOption("v", "verify", false, "Re-run each ROM on the other backend and fail if the final state differs");
+        options.addOption("r", "seed", true, "Seed for the random number generator (default 0)");
+        options.addOption("q", "quirks", true, "Quirk profile to run with: CHIP8, LENIENT, VIP, SCHIP or XOCHIP (default CHIP8)");
+        options.addOption("p", "profile", true, "Profile each ROM on the interpreter and write its pc histogram and collapsed stacks to this directory");
+        options.addOption("w", "wav", true, "Write each ROM's sound to a WAV file in this directory; needs --frames");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            long instructions = 1_000_000;
+            int frames = 0;
+            int instructionsPerSecond = 700;
+            int threads = Runtime.getRuntime().availableProcessors();
+            long seed = 0;
+            Path profileDirectory = null;
+            QuirkProfile quirks = QuirkProfile.CHIP8;
+            Path wavDirectory = null;
+            String[] appArgs = cmd.getArgs();
+
+            if (cmd.hasOption("help") || appArgs.length < 1) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("BatchRunner [options] <rom or directory>...", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("instructions")) {
+                instructions = Long.parseLong(cmd.getOptionValue("instructions").trim());
+            }
+
+            if (cmd.hasOption("frames")) {
+                frames = Integer.parseInt(cmd.getOptionValue("frames").trim());
+            }
+
+            if (cmd.hasOption("speed")) {
+                instructionsPerSecond = Integer.parseInt(cmd.getOptionValue("speed").trim());
+            }
+
+            if (cmd.hasOption("threads")) {
+                threads = Integer.parseInt(cmd.getOptionValue("threads").trim());
+            }
+
+            if (cmd.hasOption("seed")) {
+                seed = Long.parseLong(cmd.getOptionValue("seed").trim());
+            }
+
+            if (cmd.hasOption("profile")) {
+                profileDirectory = Paths.get(cmd.getOptionValue("profile"));
+                Files.createDirectories(profileDirectory);
+            }
+
+            if (cmd.hasOption("quirks")) {
+                quirks = QuirkProfile.parse(cmd.getOptionValue("quirks"));
+            }
+
+            if (cmd.hasOption("wav")) {
+                // Sound is generated a frame at a time, so a bare instruction count has none
+                if (frames == 0) {
+                    throw new IllegalArgumentException("--wav needs --frames");
+                }
+
+                wavDirectory = Paths.get(cmd.getOptionValue("wav"));
+                Files.createDirectories(wavDirectory);
+            }
+
+            return new BatchOptions(findRoms(appArgs), instructions, frames, instructionsPerSecond, threads, cmd.hasOption("jit"), cmd.hasOption("verify"), seed, profileDirectory, quirks, wavDirectory);
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
@@ -1,14 +1,137 @@
 package com.github.ikeras;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.Stack;
 
 public class CPU {
+    // Call stack depth of the original SCHIP interpreter
+    static final int STACK_SLOTS = 16;
+
     private final byte SMALL_FONT_HEIGHT = 5;
     private final byte LARGE_FONT_HEIGHT = 10;
     private final short SMALL_FONT_MEMORY_OFFSET = 0x00;
     private final short LARGE_FONT_MEMORY_OFFSET = 0x50;
 
+    // Operation ids for the decoded instruction cache
+    static final int OP_UNKNOWN = 1;
+    static final int OP_SYS = 2;
+    static final int OP_CLS = 3;
+    static final int OP_SCROLL_DOWN = 4;
+    static final int OP_RET = 5;
+    static final int OP_SCROLL_RIGHT = 6;
+    static final int OP_SCROLL_LEFT = 7;
+    static final int OP_LOW_RES = 8;
+    static final int OP_HIGH_RES = 9;
+    static final int OP_JP = 10;
+    static final int OP_CALL = 11;
+    static final int OP_SE_IMMEDIATE = 12;
+    static final int OP_SNE_IMMEDIATE = 13;
+    static final int OP_SE_REGISTER = 14;
+    static final int OP_LD_IMMEDIATE = 15;
+    static final int OP_ADD_IMMEDIATE = 16;
+    static final int OP_LD_REGISTER = 17;
+    static final int OP_OR = 18;
+    static final int OP_AND = 19;
+    static final int OP_XOR = 20;
+    static final int OP_ADD_REGISTER = 21;
+    static final int OP_SUB = 22;
+    static final int OP_SHR = 23;
+    static final int OP_SUBN = 24;
+    static final int OP_SHL = 25;
+    static final int OP_SNE_REGISTER = 26;
+    static final int OP_LD_I = 27;
+    static final int OP_JP_V0 = 28;
+    static final int OP_RND = 29;
+    static final int OP_DRW = 30;
+    static final int OP_SKP = 31;
+    static final int OP_SKNP = 32;
+    static final int OP_LD_VX_DT = 33;
+    static final int OP_LD_VX_K = 34;
+    static final int OP_LD_DT = 35;
+    static final int OP_LD_ST = 36;
+    static final int OP_ADD_I = 37;
+    static final int OP_LD_F = 38;
+    static final int OP_LD_HF = 39;
+    static final int OP_LD_B = 40;
+    static final int OP_LD_MEMORY_VX = 41;
+    static final int OP_LD_VX_MEMORY = 42;
+    static final int OP_LD_R_VX = 43;
+    static final int OP_LD_VX_R = 44;
+    // XO-CHIP only; the plain CPU treats them as unknown instructions
+    static final int OP_SCROLL_UP = 45;
+    static final int OP_SAVE_RANGE = 46;
+    static final int OP_LOAD_RANGE = 47;
+    static final int OP_LD_I_LONG = 48;
+    static final int OP_PLANE = 49;
+    static final int OP_LD_AUDIO = 50;
+    static final int OP_LD_PITCH = 51;
+
+    // Method implementing each operation, indexed by operation id. The recompiler emits calls to these.
+    static final String[] OPERATION_METHODS = new String[] {
+        null,
+        "opUnknown",
+        "opSys",
+        "opCls",
+        "opScrollDown",
+        "opRet",
+        "opScrollRight",
+        "opScrollLeft",
+        "opLowRes",
+        "opHighRes",
+        "opJp",
+        "opCall",
+        "opSeImmediate",
+        "opSneImmediate",
+        "opSeRegister",
+        "opLdImmediate",
+        "opAddImmediate",
+        "opLdRegister",
+        "opOr",
+        "opAnd",
+        "opXor",
+        "opAddRegister",
+        "opSub",
+        "opShr",
+        "opSubn",
+        "opShl",
+        "opSneRegister",
+        "opLdI",
+        "opJpV0",
+        "opRnd",
+        "opDrw",
+        "opSkp",
+        "opSknp",
+        "opLdVxDt",
+        "opLdVxK",
+        "opLdDt",
+        "opLdSt",
+        "opAddI",
+        "opLdF",
+        "opLdHf",
+        "opLdB",
+        "opLdMemoryVx",
+        "opLdVxMemory",
+        "opLdRVx",
+        "opLdVxR",
+        "opScrollUp",
+        "opSaveRange",
+        "opLoadRange",
+        "opLdILong",
+        "opPlane",
+        "opLdAudio",
+        "opLdPitch",
+    };
+
+    // Save state layout: header, memory, registers, scalars, a fixed-size stack and the whole display
+    // array, so the size only depends on the memory size and the number of planes. Bump STATE_VERSION
+    // whenever it changes.
+    static final int STATE_MAGIC = 0x55545a53; // "UTZS"
+    static final short STATE_VERSION = 2;
+    private static final int STATE_HEADER_SIZE = 12;
+
     private static final short[] SMALL_FONT = new short[] { 
         0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
         0x20, 0x60, 0x20, 0x20, 0x70, // 1
@@ -47,50 +170,310 @@ public class CPU {
         0xFE, 0x80, 0x80, 0x80, 0xF8, 0x80, 0x80, 0x80, 0x80, 0x00, // F
     };
 
-    private int _displayWidth;
-    private int _displayHeight;
-    private byte[] _display;
+    // Eight pixels' worth of 0/1 bytes for every possible byte of packed display, in big-endian order
+    private static final long[] UNPACKED_BYTES = new long[256];
+    private static final VarHandle PIXELS_AS_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            for (int bit = 0; bit < 8; bit++) {
+                UNPACKED_BYTES[value] |= (long)((value >> bit) & 1) << (bit * 8);
+            }
+        }
+    }
+
+    // Package-private, like the operations quirk profiles override, for the CPU subclasses that
+    // implement them
+    int _displayWidth;
+    int _displayHeight;
+    int _wordsPerRow;
+    // One bit per pixel, 64 pixels to a word with the leftmost pixel in the most significant bit.
+    // Each plane is a whole display of Frame.MAX_WORDS words, one after the other.
+    final long[] _display;
+    // Bit n is set when row n has changed since the display was last published
+    long _dirtyRows;
     private final boolean[] _keys;
-    private final short[] _memory;
+    final byte[] _memory;
+    private final int[] _decoded;
 
     private final short[] _persistedRegisters;
-    private final short[] _registers;
-    private int _i;
+    final short[] _registers;
+    int _i;
     private int _lastKeyPressed;
     private int _numberOfKeysPressed;
+    // Set when Fx0A finds no key down
+    private boolean _isWaitingForKey;
     private short _soundTimer;
     private short _delayTimer;
-    private final Stack<Integer> _stack;
-    private int _pc;
+    // Return addresses in a fixed ring of STACK_SLOTS entries
+    private final int[] _stack;
+    private int _stackTop;
+    private int _stackDepth;
+    int _pc;
+    private long _randomState;
+    private Recompiler _recompiler;
+    private final TraceRing _trace = new TraceRing();
+    // The last transfer traced, as the pc after it and its target, so a loop repeating it only compares
+    private int _tracedPc;
+    private int _tracedTarget;
+
+    // Instrumentation, only updated when Metrics.ENABLED and only from the emulation thread
+    private final long[] _operationCounts = new long[OPERATION_METHODS.length];
+    private long _drawSpriteCalls;
+    private long _drawSpriteNanos;
+
+    public CPU(byte[] memory) {
+        this(memory, 1);
+    }
 
-    public CPU(short[] memory) {
+    CPU(byte[] memory, int planes) {
         _memory = memory;
+        _decoded = new int[memory.length];
         _keys = new boolean[16];
         _persistedRegisters = new short[16];
         _registers = new short[16];
-        _stack = new Stack<Integer>();
+        _stack = new int[STACK_SLOTS];
+        _stackTop = 0;
+        _stackDepth = 0;
         _soundTimer = 0;
         _delayTimer = 0;
         _lastKeyPressed = 0x0;
         _numberOfKeysPressed = 0;
         _i = 0;
         _pc = 0x200;
+        _trace.clear(_pc);
+        _tracedPc = -1;
+        setRandomSeed(0);
 
-        // We don't call createDisplay() here because we cannot synchronize on _display until after it's been initialized once
-        int width = 64;
-        int height = 32;
-        _display = new byte[width * height];
-        _displayWidth = width;
-        _displayHeight = height;
+        // Sized for the largest resolution so switching modes never reallocates
+        _display = new long[Frame.MAX_WORDS * planes];
+        createDisplay(64, 32);
+
+        for (int i = 0; i < SMALL_FONT.length; i++) {
+            _memory[SMALL_FONT_MEMORY_OFFSET + i] = (byte)SMALL_FONT[i];
+        }
+
+        for (int i = 0; i < LARGE_FONT.length; i++) {
+            _memory[LARGE_FONT_MEMORY_OFFSET + i] = (byte)LARGE_FONT[i];
+        }
 
-        System.arraycopy(SMALL_FONT, 0, _memory, SMALL_FONT_MEMORY_OFFSET, SMALL_FONT.length);
-        System.arraycopy(LARGE_FONT, 0, _memory, LARGE_FONT_MEMORY_OFFSET, LARGE_FONT.length);
+        invalidate(0, _memory.length);
     }
 
+    // Copies the display into the exchange's back frame and publishes it. Like everything else that
+    // touches the display this must run on the emulation thread.
+    void publishDisplay(FrameExchange exchange) {
+        long[] pixels = exchange.getBackFrame().getPixels();
+        for (int plane = 0; plane < _display.length; plane += Frame.MAX_WORDS) {
+            System.arraycopy(_display, plane, pixels, plane, _displayHeight * _wordsPerRow);
+        }
+
+        exchange.publish(_displayWidth, _displayHeight, _dirtyRows);
+        _dirtyRows = 0;
+    }
+
+    // Unpacks the display to one byte per pixel, row by row. Each pixel holds its bit from plane n
+    // in bit n, so a single plane comes out as 0 and 1.
     byte[] getDisplay() {
-        synchronized (_display) {
-            return Arrays.copyOf(_display, _display.length);
+        byte[] pixels = new byte[_displayWidth * _displayHeight];
+
+        int displayWords = _displayHeight * _wordsPerRow;
+        for (int word = 0, pixel = 0; word < displayWords; word++) {
+            for (int shift = 56; shift >= 0; shift -= 8, pixel += 8) {
+                long unpacked = 0;
+                for (int plane = 0, index = word; index < _display.length; plane++, index += Frame.MAX_WORDS) {
+                    unpacked |= UNPACKED_BYTES[(int)(_display[index] >>> shift) & 0xff] << plane;
+                }
+
+                PIXELS_AS_LONG.set(pixels, pixel, unpacked);
+            }
+        }
+
+        return pixels;
+    }
+
+    int getStateSize() {
+        return STATE_HEADER_SIZE + _memory.length + 32 + 8 + 8 + STACK_SLOTS * 2 + 4 + _display.length * 8;
+    }
+
+    // Writes the architectural state at the buffer's position without allocating. Key state is
+    // deliberately left out: held keys belong to the player, not to the snapshot.
+    void saveState(ByteBuffer buffer) {
+        buffer.putInt(STATE_MAGIC);
+        buffer.putShort(STATE_VERSION);
+        buffer.putShort((short)0);
+        buffer.putInt(_memory.length);
+
+        buffer.put(_memory);
+
+        for (int i = 0; i < 16; i++) {
+            buffer.put((byte)_registers[i]);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            buffer.put((byte)_persistedRegisters[i]);
+        }
+
+        buffer.putShort((short)_i);
+        buffer.putShort((short)_pc);
+        buffer.put((byte)_delayTimer);
+        buffer.put((byte)_soundTimer);
+        buffer.put((byte)_stackDepth);
+        buffer.put((byte)0);
+        buffer.putLong(_randomState);
+
+        // Oldest entry first, so the ring's position doesn't leak into the state
+        for (int i = 0; i < STACK_SLOTS; i++) {
+            buffer.putShort(i < _stackDepth ? (short)getStackEntry(i) : 0);
+        }
+
+        buffer.putShort((short)_displayWidth);
+        buffer.putShort((short)_displayHeight);
+
+        for (long word : _display) {
+            buffer.putLong(word);
+        }
+    }
+
+    // Reads a state written by saveState. Only the memory that actually differs is re-decoded, so
+    // restoring a recent state keeps almost all of the decode table and compiled blocks.
+    void restoreState(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        if (magic != STATE_MAGIC) {
+            throw new IllegalArgumentException("Not a save state: " + Integer.toHexString(magic));
+        }
+
+        short version = buffer.getShort();
+        if (version != STATE_VERSION) {
+            throw new IllegalArgumentException("Unsupported save state version: " + version);
+        }
+
+        buffer.getShort();
+        int memoryLength = buffer.getInt();
+        if (memoryLength != _memory.length) {
+            throw new IllegalArgumentException("Save state memory size " + memoryLength + " does not match " + _memory.length);
+        }
+
+        if (buffer.remaining() < getStateSize() - STATE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated save state");
+        }
+
+        // Checked up front, so a corrupt state leaves the CPU as it was. Memory is followed by 32 bytes
+        // of registers, then I, the pc and the timers, and the stack depth.
+        int registersEnd = buffer.position() + memoryLength + 32;
+        int stackDepth = buffer.get(registersEnd + 6) & 0xff;
+        if (stackDepth > STACK_SLOTS) {
+            throw new IllegalArgumentException("Save state call stack depth " + stackDepth + " exceeds " + STACK_SLOTS);
+        }
+
+        int displayOffset = registersEnd + 16 + STACK_SLOTS * 2;
+        int displayWidth = buffer.getShort(displayOffset);
+        int displayHeight = buffer.getShort(displayOffset + 2);
+        if (!(displayWidth == 64 && displayHeight == 32) && !(displayWidth == 128 && displayHeight == 64)) {
+            throw new IllegalArgumentException("Save state display size " + displayWidth + "x" + displayHeight + " is neither 64x32 nor 128x64");
         }
+
+        int lowestChanged = memoryLength;
+        int highestChanged = -1;
+        for (int address = 0; address < memoryLength; address++) {
+            byte value = buffer.get();
+            if (_memory[address] != value) {
+                _memory[address] = value;
+                lowestChanged = Math.min(lowestChanged, address);
+                highestChanged = address;
+            }
+        }
+
+        if (highestChanged >= lowestChanged) {
+            invalidate(lowestChanged, highestChanged - lowestChanged + 1);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            _registers[i] = (short)(buffer.get() & 0xff);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            _persistedRegisters[i] = (short)(buffer.get() & 0xff);
+        }
+
+        _i = buffer.getShort() & 0xffff;
+        _pc = buffer.getShort() & 0xffff;
+        _trace.clear(_pc);
+        _tracedPc = -1;
+        _delayTimer = (short)(buffer.get() & 0xff);
+        _soundTimer = (short)(buffer.get() & 0xff);
+        // The stack depth, read above, and padding
+        buffer.get();
+        buffer.get();
+        _randomState = buffer.getLong();
+
+        for (int i = 0; i < STACK_SLOTS; i++) {
+            _stack[i] = buffer.getShort() & 0xffff;
+        }
+
+        _stackTop = stackDepth % STACK_SLOTS;
+        _stackDepth = stackDepth;
+
+        // The display size, read above
+        buffer.getShort();
+        buffer.getShort();
+        _displayWidth = displayWidth;
+        _displayHeight = displayHeight;
+        _wordsPerRow = _displayWidth / 64;
+
+        for (int word = 0; word < _display.length; word++) {
+            _display[word] = buffer.getLong();
+        }
+
+        _dirtyRows = -1;
+    }
+
+    // Hash of all architectural state, used to check that execution backends agree
+    long getStateDigest() {
+        long hash = 0xcbf29ce484222325L;
+        for (byte value : _memory) {
+            hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+        }
+
+        for (int i = 0; i < 16; i++) {
+            hash = (hash ^ _registers[i]) * 0x100000001b3L;
+            hash = (hash ^ _persistedRegisters[i]) * 0x100000001b3L;
+        }
+
+        for (int depth = 0; depth < _stackDepth; depth++) {
+            hash = (hash ^ getStackEntry(depth)) * 0x100000001b3L;
+        }
+
+        hash = (hash ^ _i) * 0x100000001b3L;
+        hash = (hash ^ _pc) * 0x100000001b3L;
+        hash = (hash ^ _delayTimer) * 0x100000001b3L;
+        hash = (hash ^ _soundTimer) * 0x100000001b3L;
+        hash = (hash ^ _displayWidth) * 0x100000001b3L;
+        hash = (hash ^ _randomState) * 0x100000001b3L;
+
+        for (long word : _display) {
+            hash = (hash ^ word) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    // The RNG behind Cxkk is part of the machine state, so a seed plus the input makes a run reproducible
+    void setRandomSeed(long seed) {
+        // Mix the seed so that small seeds don't start with a run of low-entropy outputs, and keep it
+        // non-zero, which xorshift can't leave
+        long state = (seed + 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+        _randomState = state == 0 ? 1 : state;
+    }
+
+    // xorshift64*
+    private int nextRandom() {
+        long state = _randomState;
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+        _randomState = state;
+        return (int)((state * 0x2545f4914f6cdd1dL) >>> 56);
     }
 
     int getDisplayHeight() {
@@ -101,296 +484,840 @@ public class CPU {
         return _displayWidth;
     }
 
+    int getSoundTimer() {
+        return _soundTimer;
+    }
+
+    // Only XO-CHIP has a sound other than the buzzer
+    byte[] getAudioPattern() {
+        return null;
+    }
+
+    int getPitch() {
+        return 0;
+    }
+
     void executeNextInstruction() {
-        short hiInstruction = _memory[_pc];
-        short loInstruction = _memory[_pc + 1];
-        _pc += 2;
+        int pc = _pc;
+        int decoded = _decoded[pc];
+        // Running off the end of memory carries on from the start
+        _pc = (pc + 2) & (_decoded.length - 1);
+
+        if (Metrics.ENABLED) {
+            _operationCounts[decoded >>> 16]++;
+        }
+
+        execute(decoded >>> 16, decoded & 0xffff);
+    }
 
-        byte instruction = (byte)(hiInstruction >> 4);
-        byte x = (byte)(hiInstruction & 0x0f);
-        byte y = (byte)(loInstruction >> 4);
-        byte n = (byte)(loInstruction & 0x0f);
+    // The trace ring disassembled, oldest first, up to the instruction before the current pc, followed
+    // by the registers as they are now
+    String getTrace() {
+        StringBuilder registers = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            registers.append(String.format("V%X=%02X ", i, _registers[i]));
+        }
+
+        return _trace.dump(this) + String.format("%sI=0x%03X%n", registers, _i);
+    }
+
+    // Moves the pc anywhere other than the next instruction. Only these transfers are traced, as
+    // the instructions between them always run in sequence.
+    void transfer(int target) {
+        trace(_pc, target);
+        _pc = target;
+    }
+
+    // Steps over the next instruction
+    void skip() {
+        transfer(_pc + 2);
+    }
+
+    // Also called from compiled blocks, which jump without going through opJp. The pc is the one
+    // after the transferring instruction.
+    private void trace(int pc, int target) {
+        if (pc != _tracedPc || target != _tracedTarget) {
+            _tracedPc = pc;
+            _tracedTarget = target;
+            int address = (pc - 2) & (_decoded.length - 1);
+            _trace.record(address, target, _i, _decoded[address] & 0xffff);
+        }
+    }
+
+    // Traces an instruction about to write to memory from I, before it changes I or the code it
+    // overwrites; these always end a compiled block, so the pc is up to date
+    void traceWrite() {
+        int address = (_pc - 2) & (_decoded.length - 1);
+        _trace.record(address, _pc, _i, _decoded[address] & 0xffff);
+        // The next transfer is traced even if it repeats the last one, so the write stays between them
+        _tracedPc = -1;
+    }
+
+    // Called from compiled blocks before each instruction when metrics are enabled
+    private void countOperation(int operation) {
+        _operationCounts[operation]++;
+    }
+
+    int getPc() {
+        return _pc;
+    }
+
+    int getDecodedInstruction(int address) {
+        return _decoded[address];
+    }
+
+    long[] getOperationCounts() {
+        return _operationCounts;
+    }
+
+    long getDrawSpriteCalls() {
+        return _drawSpriteCalls;
+    }
+
+    long getDrawSpriteNanos() {
+        return _drawSpriteNanos;
+    }
+
+    // Runs the compiled block at the current pc, or falls back to a single interpreted instruction
+    // when the block would overrun the budget. Returns the number of instructions executed.
+    int executeNextBlock(int budget) {
+        return _recompiler.execute(_pc, budget);
+    }
+
+    void enableRecompiler() {
+        if (_recompiler == null) {
+            _recompiler = new Recompiler(this, _decoded, MethodHandles.lookup());
+        }
+    }
+
+    boolean isRecompilerEnabled() {
+        return _recompiler != null;
+    }
+
+    private void execute(int operation, int opcode) {
+        switch (operation) {
+            case OP_UNKNOWN:
+                opUnknown(opcode);
+                break;
+            case OP_SYS:
+                opSys(opcode);
+                break;
+            case OP_CLS:
+                opCls(opcode);
+                break;
+            case OP_SCROLL_DOWN:
+                opScrollDown(opcode);
+                break;
+            case OP_RET:
+                opRet(opcode);
+                break;
+            case OP_SCROLL_RIGHT:
+                opScrollRight(opcode);
+                break;
+            case OP_SCROLL_LEFT:
+                opScrollLeft(opcode);
+                break;
+            case OP_LOW_RES:
+                opLowRes(opcode);
+                break;
+            case OP_HIGH_RES:
+                opHighRes(opcode);
+                break;
+            case OP_JP:
+                opJp(opcode);
+                break;
+            case OP_CALL:
+                opCall(opcode);
+                break;
+            case OP_SE_IMMEDIATE:
+                opSeImmediate(opcode);
+                break;
+            case OP_SNE_IMMEDIATE:
+                opSneImmediate(opcode);
+                break;
+            case OP_SE_REGISTER:
+                opSeRegister(opcode);
+                break;
+            case OP_LD_IMMEDIATE:
+                opLdImmediate(opcode);
+                break;
+            case OP_ADD_IMMEDIATE:
+                opAddImmediate(opcode);
+                break;
+            case OP_LD_REGISTER:
+                opLdRegister(opcode);
+                break;
+            case OP_OR:
+                opOr(opcode);
+                break;
+            case OP_AND:
+                opAnd(opcode);
+                break;
+            case OP_XOR:
+                opXor(opcode);
+                break;
+            case OP_ADD_REGISTER:
+                opAddRegister(opcode);
+                break;
+            case OP_SUB:
+                opSub(opcode);
+                break;
+            case OP_SHR:
+                opShr(opcode);
+                break;
+            case OP_SUBN:
+                opSubn(opcode);
+                break;
+            case OP_SHL:
+                opShl(opcode);
+                break;
+            case OP_SNE_REGISTER:
+                opSneRegister(opcode);
+                break;
+            case OP_LD_I:
+                opLdI(opcode);
+                break;
+            case OP_JP_V0:
+                opJpV0(opcode);
+                break;
+            case OP_RND:
+                opRnd(opcode);
+                break;
+            case OP_DRW:
+                opDrw(opcode);
+                break;
+            case OP_SKP:
+                opSkp(opcode);
+                break;
+            case OP_SKNP:
+                opSknp(opcode);
+                break;
+            case OP_LD_VX_DT:
+                opLdVxDt(opcode);
+                break;
+            case OP_LD_VX_K:
+                opLdVxK(opcode);
+                break;
+            case OP_LD_DT:
+                opLdDt(opcode);
+                break;
+            case OP_LD_ST:
+                opLdSt(opcode);
+                break;
+            case OP_ADD_I:
+                opAddI(opcode);
+                break;
+            case OP_LD_F:
+                opLdF(opcode);
+                break;
+            case OP_LD_HF:
+                opLdHf(opcode);
+                break;
+            case OP_LD_B:
+                opLdB(opcode);
+                break;
+            case OP_LD_MEMORY_VX:
+                opLdMemoryVx(opcode);
+                break;
+            case OP_LD_VX_MEMORY:
+                opLdVxMemory(opcode);
+                break;
+            case OP_LD_R_VX:
+                opLdRVx(opcode);
+                break;
+            case OP_LD_VX_R:
+                opLdVxR(opcode);
+                break;
+            case OP_SCROLL_UP:
+                opScrollUp(opcode);
+                break;
+            case OP_SAVE_RANGE:
+                opSaveRange(opcode);
+                break;
+            case OP_LOAD_RANGE:
+                opLoadRange(opcode);
+                break;
+            case OP_LD_I_LONG:
+                opLdILong(opcode);
+                break;
+            case OP_PLANE:
+                opPlane(opcode);
+                break;
+            case OP_LD_AUDIO:
+                opLdAudio(opcode);
+                break;
+            case OP_LD_PITCH:
+                opLdPitch(opcode);
+                break;
+            default:
+                opUnknown(opcode);
+        }
+    }
+
+    // Re-decodes a range of memory that has been written to. The instruction starting one byte
+    // before the range is refreshed too since its low byte lives inside the range.
+    void invalidate(int address, int length) {
+        int start = Math.max(0, address - 1);
+        int end = Math.min(_decoded.length, address + length);
+        for (int i = start; i < end; i++) {
+            _decoded[i] = decode(i);
+        }
+
+        // Blocks only need dropping if they hold a written byte; widening this by one as well would
+        // throw away the block that ends just before the write every time, e.g. with I at end of code
+        if (_recompiler != null) {
+            _recompiler.invalidate(address, end - address);
+        }
+    }
 
-        short kk = loInstruction;
-        short nnn = (short)(x << 8 | kk);
+    void pressKey(int key) {
+        if (!_keys[key]) {
+            _keys[key] = true;
+            _lastKeyPressed = key;
+            _numberOfKeysPressed++;
+        }
+    }
 
+    // Keys only change between frames, so once Fx0A is waiting the rest of the frame would only run it
+    // again; the emulator ends the frame instead
+    boolean isWaitingForKey() {
+        return _isWaitingForKey;
+    }
+
+    void clearKeyWait() {
+        _isWaitingForKey = false;
+    }
+
+    void releaseKey(int key) {
+        if (_keys[key]) {
+            _keys[key] = false;
+            _numberOfKeysPressed--;
+        }
+    }
+
+    void tick() {
+        if (_delayTimer > 0) {
+            _delayTimer--;
+        }
+
+        if (_soundTimer > 0) {
+            _soundTimer--;
+        }
+    }
+
+    private int decode(int address) {
+        short hiInstruction = (short)(_memory[address] & 0xff);
+        if (address + 1 >= _memory.length) {
+            // The last byte of memory can't hold a whole instruction
+            return OP_UNKNOWN << 16 | hiInstruction << 8;
+        }
+
+        short loInstruction = (short)(_memory[address + 1] & 0xff);
+        return decodeInstruction(hiInstruction << 8 | loInstruction);
+    }
+
+    // Only runs when memory is written, never per instruction, so subclasses are free to decode
+    // differently. This is also called while the constructor fills the table, before any subclass
+    // fields are set.
+    int decodeInstruction(int opcode) {
+        return decodeOpcode(opcode);
+    }
+
+    // The decode table entry (operation << 16 | opcode) for a raw 16-bit instruction
+    static int decodeOpcode(int opcode) {
+        byte instruction = (byte)(opcode >> 12);
+        byte n = (byte)(opcode & 0x0f);
+        short kk = (short)(opcode & 0xff);
+        short nnn = (short)(opcode & 0xfff);
+
+        return decodeOperation(instruction, nnn, n, kk) << 16 | opcode;
+    }
+
+    private static int decodeOperation(byte instruction, short nnn, byte n, short kk) {
         switch (instruction) {
             case 0x0:
                 if (nnn == 0x0e0) {
-                    synchronized (_display) {
-                        Arrays.fill(_display, (byte)0);
-                    }
+                    return OP_CLS;
                 } else if (nnn >= 0x00c0 && nnn <= 0x00cf) {
-                    scrollDown(n);
+                    return OP_SCROLL_DOWN;
                 } else if (nnn == 0x00ee) {
-                    _pc = _stack.pop();
+                    return OP_RET;
                 } else if (nnn == 0x00fb) {
-                    scrollRight();
+                    return OP_SCROLL_RIGHT;
                 } else if (nnn == 0x00fc) {
-                    scrollLeft();
+                    return OP_SCROLL_LEFT;
                 } else if (nnn == 0x00fe) {
-                    createDisplay(64, 32);
+                    return OP_LOW_RES;
                 } else if (nnn == 0x00ff) {
-                    createDisplay(128, 64);
+                    return OP_HIGH_RES;
                 }
-                break;
+                return OP_SYS;
             case 0x1:
-                _pc = nnn;
-                break;
+                return OP_JP;
             case 0x2:
-                _stack.push(_pc);
-                _pc = nnn;
-                break;
+                return OP_CALL;
             case 0x3:
-                if (_registers[x] == kk) {
-                    _pc += 2;
-                }
-                break;
+                return OP_SE_IMMEDIATE;
             case 0x4:
-                if (_registers[x] != kk) {
-                    _pc += 2;
-                }
-                break;
+                return OP_SNE_IMMEDIATE;
             case 0x5:
-                if (_registers[x] == _registers[y]) {
-                    _pc += 2;
-                }
-                break;
+                return OP_SE_REGISTER;
             case 0x6:
-                _registers[x] = kk;
-                break;
+                return OP_LD_IMMEDIATE;
             case 0x7:
-                _registers[x] = (short)((_registers[x] + kk) & 0xff);
-                break;
+                return OP_ADD_IMMEDIATE;
             case 0x8:
                 switch (n) {
                     case 0x0:
-                        _registers[x] = _registers[y];
-                        break;
+                        return OP_LD_REGISTER;
                     case 0x1:
-                        _registers[x] |= _registers[y];
-                        break;
+                        return OP_OR;
                     case 0x2:
-                        _registers[x] &= _registers[y];
-                        break;
+                        return OP_AND;
                     case 0x3:
-                        _registers[x] ^= _registers[y];
-                        break;
+                        return OP_XOR;
                     case 0x4:
-                        int sum = _registers[x] + _registers[y];
-                        _registers[0xf] = (short)(sum > 0xff ? 1 : 0);
-                        _registers[x] = (short)(sum & 0xff);
-                        break;
+                        return OP_ADD_REGISTER;
                     case 0x5:
-                        _registers[0xf] = (short)(_registers[x] >= _registers[y] ? 1 : 0);
-                        _registers[x] = (short)((_registers[x] - _registers[y]) & 0xff);
-                        break;
+                        return OP_SUB;
                     case 0x6:
-                        _registers[0xf] = (short)(_registers[x] & 0x1);
-                        _registers[x] = (short)(_registers[x] >> 1);
-                        break;
+                        return OP_SHR;
                     case 0x7:
-                        _registers[0xf] = (short)(_registers[y] >= _registers[x] ? 1 : 0);
-                        _registers[x] = (short)((_registers[y] - _registers[x]) & 0xff);
-                        break;
+                        return OP_SUBN;
                     case 0xe:
-                        _registers[0xf] = (short)(_registers[x] >> 0x7);
-                        _registers[x] = (short)((_registers[x] << 1) & 0xff);
-                        break;
+                        return OP_SHL;
                     default:
-                        throw new RuntimeException("Unknown instruction: " + Integer.toHexString(hiInstruction) + Integer.toHexString(loInstruction));
+                        return OP_UNKNOWN;
                 }
-                break;
             case 0x9:
-                if (_registers[x] != _registers[y]) {
-                    _pc += 2;
-                }
-                break;
+                return OP_SNE_REGISTER;
             case 0xa:
-                _i = nnn;
-                break;
+                return OP_LD_I;
             case 0xb:
-                _pc = (int)((_registers[0] + nnn) & 0xffff);
-                break;
+                return OP_JP_V0;
             case 0xc:
-                _registers[x] = (short)((short)(Math.random() * 0xff) & kk);
-                break;
+                return OP_RND;
             case 0xd:
-                drawSprite(x, y, n);
-                break;
+                return OP_DRW;
             case 0xe:
                 if (kk == 0x9e) {
-                    if (_keys[_registers[x]]) {
-                        _pc += 2;
-                    }
+                    return OP_SKP;
                 } else if (kk == 0xa1) {
-                    if (!_keys[_registers[x]]) {
-                        _pc += 2;
-                    }
-                } else {
-                    throw new RuntimeException("Unknown instruction: " + Integer.toHexString(hiInstruction) + Integer.toHexString(loInstruction));
+                    return OP_SKNP;
                 }
-                break;
-            case 0xf:
+                return OP_UNKNOWN;
+            default:
                 switch (kk) {
                     case 0x07:
-                        _registers[x] = _delayTimer;
-                        break;
+                        return OP_LD_VX_DT;
                     case 0x0a:
-                        if (_numberOfKeysPressed > 0) {
-                            _registers[x] = (short)_lastKeyPressed;
-                        } else {
-                            _pc -= 2;
-                        }
-                        break;
+                        return OP_LD_VX_K;
                     case 0x15:
-                        _delayTimer = _registers[x];
-                        break;
+                        return OP_LD_DT;
                     case 0x18:
-                        _soundTimer = _registers[x];
-                        break;
+                        return OP_LD_ST;
                     case 0x1e:
-                        int result = _i + _registers[x];
-                        if (result > 0xfff) {
-                            _registers[0xf] = 1;
-                        }
-                        _i = result & 0xfff;
-                        break;
+                        return OP_ADD_I;
                     case 0x29:
-                        _i = SMALL_FONT_MEMORY_OFFSET + (_registers[x] * SMALL_FONT_HEIGHT);
-                        break;
+                        return OP_LD_F;
                     case 0x30:
-                        _i = LARGE_FONT_MEMORY_OFFSET + (_registers[x] * LARGE_FONT_HEIGHT);
-                        break;
+                        return OP_LD_HF;
                     case 0x33:
-                        _memory[_i] = (byte)(_registers[x] / 100);
-                        _memory[_i + 1] = (byte)((_registers[x] / 10) % 10);
-                        _memory[_i + 2] = (byte)(_registers[x] % 10);
-                        break;
+                        return OP_LD_B;
                     case 0x55:
-                        System.arraycopy(_registers, 0, _memory, _i, x + 1);
-                        break;
+                        return OP_LD_MEMORY_VX;
                     case 0x65:
-                        System.arraycopy(_memory, _i, _registers, 0, x + 1);
-                        break;
+                        return OP_LD_VX_MEMORY;
                     case 0x75:
-                        System.arraycopy(_registers, 0, _persistedRegisters, 0, 16);
-                        break;
+                        return OP_LD_R_VX;
                     case 0x85:
-                        System.arraycopy(_persistedRegisters, 0, _registers, 0, 16);
-                        break;
+                        return OP_LD_VX_R;
+                    case 0x3a:
+                        return OP_LD_PITCH;
+                    case 0x01:
+                        return OP_PLANE;
+                    case 0x00:
+                        return nnn == 0x000 ? OP_LD_I_LONG : OP_UNKNOWN;
+                    case 0x02:
+                        return nnn == 0x002 ? OP_LD_AUDIO : OP_UNKNOWN;
                     default:
-                        throw new RuntimeException("Unknown instruction: " + Integer.toHexString(hiInstruction) + Integer.toHexString(loInstruction));
+                        return OP_UNKNOWN;
                 }
-                break;
         }
     }
 
-    void pressKey(int key) {
-        if (!_keys[key]) {
-            _keys[key] = true;
-            _lastKeyPressed = key;
-            _numberOfKeysPressed++;
+    private void opUnknown(int opcode) {
+        throw new RuntimeException("Unknown instruction: " + Integer.toHexString(opcode >> 8) + Integer.toHexString(opcode & 0xff));
+    }
+
+    private void opSys(int opcode) {
+    }
+
+    void opCls(int opcode) {
+        Arrays.fill(_display, 0L);
+        _dirtyRows = -1L;
+    }
+
+    void opScrollDown(int opcode) {
+        scrollDown(0, opcode & 0x0f);
+    }
+
+    private void opRet(int opcode) {
+        if (_stackDepth == 0) {
+            throw new RuntimeException(String.format("Call stack underflow at 0x%03x", _pc - 2));
         }
+
+        _stackDepth--;
+        _stackTop = (_stackTop - 1) & (STACK_SLOTS - 1);
+        transfer(_stack[_stackTop]);
     }
 
-    void releaseKey(int key) {
-        if (_keys[key]) {
-            _keys[key] = false;
-            _numberOfKeysPressed--;
+    void opScrollRight(int opcode) {
+        scrollRight(0);
+    }
+
+    void opScrollLeft(int opcode) {
+        scrollLeft(0);
+    }
+
+    private void opLowRes(int opcode) {
+        createDisplay(64, 32);
+    }
+
+    private void opHighRes(int opcode) {
+        createDisplay(128, 64);
+    }
+
+    private void opJp(int opcode) {
+        transfer(opcode & 0xfff);
+    }
+
+    void opCall(int opcode) {
+        if (_stackDepth == STACK_SLOTS) {
+            throw new RuntimeException(String.format("Call stack overflow at 0x%03x", _pc - 2));
         }
+
+        _stack[_stackTop] = _pc;
+        _stackTop = (_stackTop + 1) & (STACK_SLOTS - 1);
+        _stackDepth++;
+
+        transfer(opcode & 0xfff);
     }
 
-    void tick() {
-        if (_delayTimer > 0) {
-            _delayTimer--;
+    boolean isStackFull() {
+        return _stackDepth == STACK_SLOTS;
+    }
+
+    // Forgets the oldest return address, leaving its slot as the next one to be written
+    void dropOldestReturn() {
+        _stackDepth--;
+    }
+
+    int getStackDepth() {
+        return _stackDepth;
+    }
+
+    // The depth-th return address counting from the oldest one still held
+    int getStackEntry(int depth) {
+        return _stack[(_stackTop - _stackDepth + depth) & (STACK_SLOTS - 1)];
+    }
+
+    private void opSeImmediate(int opcode) {
+        if (_registers[(opcode >> 8) & 0x0f] == (opcode & 0xff)) {
+            skip();
         }
+    }
 
-        if (_soundTimer > 0) {
-            _soundTimer--;
+    private void opSneImmediate(int opcode) {
+        if (_registers[(opcode >> 8) & 0x0f] != (opcode & 0xff)) {
+            skip();
         }
     }
 
-    private void createDisplay(int width, int height) {
-        synchronized (_display) {
-            _display = new byte[width * height];
-            _displayWidth = width;
-            _displayHeight = height;
+    private void opSeRegister(int opcode) {
+        if (_registers[(opcode >> 8) & 0x0f] == _registers[(opcode >> 4) & 0x0f]) {
+            skip();
         }
     }
 
-    private void drawSprite(short x, short y, short n) {
+    private void opLdImmediate(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] = (short)(opcode & 0xff);
+    }
+
+    private void opAddImmediate(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        _registers[x] = (short)((_registers[x] + (opcode & 0xff)) & 0xff);
+    }
+
+    private void opLdRegister(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] = _registers[(opcode >> 4) & 0x0f];
+    }
+
+    void opOr(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] |= _registers[(opcode >> 4) & 0x0f];
+    }
+
+    void opAnd(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] &= _registers[(opcode >> 4) & 0x0f];
+    }
+
+    void opXor(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] ^= _registers[(opcode >> 4) & 0x0f];
+    }
+
+    private void opAddRegister(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        int sum = _registers[x] + _registers[(opcode >> 4) & 0x0f];
+        _registers[0xf] = (short)(sum > 0xff ? 1 : 0);
+        _registers[x] = (short)(sum & 0xff);
+    }
+
+    private void opSub(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        _registers[0xf] = (short)(_registers[x] >= _registers[y] ? 1 : 0);
+        _registers[x] = (short)((_registers[x] - _registers[y]) & 0xff);
+    }
+
+    void opShr(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        _registers[0xf] = (short)(_registers[x] & 0x1);
+        _registers[x] = (short)(_registers[x] >> 1);
+    }
+
+    private void opSubn(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        _registers[0xf] = (short)(_registers[y] >= _registers[x] ? 1 : 0);
+        _registers[x] = (short)((_registers[y] - _registers[x]) & 0xff);
+    }
+
+    void opShl(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        _registers[0xf] = (short)(_registers[x] >> 0x7);
+        _registers[x] = (short)((_registers[x] << 1) & 0xff);
+    }
+
+    private void opSneRegister(int opcode) {
+        if (_registers[(opcode >> 8) & 0x0f] != _registers[(opcode >> 4) & 0x0f]) {
+            skip();
+        }
+    }
+
+    private void opLdI(int opcode) {
+        _i = opcode & 0xfff;
+    }
+
+    void opJpV0(int opcode) {
+        transfer((_registers[0] + (opcode & 0xfff)) & 0xffff);
+    }
+
+    private void opRnd(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] = (short)(nextRandom() & opcode & 0xff);
+    }
+
+    private void opDrw(int opcode) {
+        if (Metrics.ENABLED) {
+            long start = System.nanoTime();
+            drawSprite((opcode >> 8) & 0x0f, (opcode >> 4) & 0x0f, opcode & 0x0f);
+            _drawSpriteNanos += System.nanoTime() - start;
+            _drawSpriteCalls++;
+        } else {
+            drawSprite((opcode >> 8) & 0x0f, (opcode >> 4) & 0x0f, opcode & 0x0f);
+        }
+    }
+
+    private void opSkp(int opcode) {
+        if (_keys[_registers[(opcode >> 8) & 0x0f]]) {
+            skip();
+        }
+    }
+
+    private void opSknp(int opcode) {
+        if (!_keys[_registers[(opcode >> 8) & 0x0f]]) {
+            skip();
+        }
+    }
+
+    private void opLdVxDt(int opcode) {
+        _registers[(opcode >> 8) & 0x0f] = _delayTimer;
+    }
+
+    private void opLdVxK(int opcode) {
+        if (_numberOfKeysPressed > 0) {
+            _registers[(opcode >> 8) & 0x0f] = (short)_lastKeyPressed;
+        } else {
+            _pc -= 2;
+            _isWaitingForKey = true;
+        }
+    }
+
+    private void opLdDt(int opcode) {
+        _delayTimer = _registers[(opcode >> 8) & 0x0f];
+    }
+
+    private void opLdSt(int opcode) {
+        _soundTimer = _registers[(opcode >> 8) & 0x0f];
+    }
+
+    void opAddI(int opcode) {
+        int result = _i + _registers[(opcode >> 8) & 0x0f];
+        if (result > 0xfff) {
+            _registers[0xf] = 1;
+        }
+        _i = result & 0xfff;
+    }
+
+    private void opLdF(int opcode) {
+        _i = SMALL_FONT_MEMORY_OFFSET + (_registers[(opcode >> 8) & 0x0f] * SMALL_FONT_HEIGHT);
+    }
+
+    private void opLdHf(int opcode) {
+        _i = LARGE_FONT_MEMORY_OFFSET + (_registers[(opcode >> 8) & 0x0f] * LARGE_FONT_HEIGHT);
+    }
+
+    void opLdB(int opcode) {
+        traceWrite();
+        short value = _registers[(opcode >> 8) & 0x0f];
+        _memory[_i] = (byte)(value / 100);
+        _memory[_i + 1] = (byte)((value / 10) % 10);
+        _memory[_i + 2] = (byte)(value % 10);
+        invalidate(_i, 3);
+    }
+
+    void opLdMemoryVx(int opcode) {
+        traceWrite();
+        int count = ((opcode >> 8) & 0x0f) + 1;
+        for (int register = 0; register < count; register++) {
+            _memory[_i + register] = (byte)_registers[register];
+        }
+
+        invalidate(_i, count);
+    }
+
+    void opLdVxMemory(int opcode) {
+        int count = ((opcode >> 8) & 0x0f) + 1;
+        for (int register = 0; register < count; register++) {
+            _registers[register] = (short)(_memory[_i + register] & 0xff);
+        }
+    }
+
+    private void opLdRVx(int opcode) {
+        System.arraycopy(_registers, 0, _persistedRegisters, 0, 16);
+    }
+
+    private void opLdVxR(int opcode) {
+        System.arraycopy(_persistedRegisters, 0, _registers, 0, 16);
+    }
+
+    void opScrollUp(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opSaveRange(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opLoadRange(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opLdILong(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opPlane(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opLdAudio(int opcode) {
+        opUnknown(opcode);
+    }
+
+    void opLdPitch(int opcode) {
+        opUnknown(opcode);
+    }
+
+    private void createDisplay(int width, int height) {
+        Arrays.fill(_display, 0L);
+        _dirtyRows = -1L;
+        _displayWidth = width;
+        _displayHeight = height;
+        _wordsPerRow = width / 64;
+    }
+
+    // Each sprite row is lined up against the most significant bit, shifted to its x position and
+    // XORed into at most two display words. Bits shifted past the right edge are clipped.
+    void drawSprite(int x, int y, int n) {
         int xStart = _registers[x] % _displayWidth;
-        int yOffset = _registers[y] % _displayHeight;
-        _registers[0xf] = 0;
+        int yStart = _registers[y] % _displayHeight;
 
         int spriteWidth = n == 0 ? 16 : 8;
-        int sprintHeight = n == 0 ? 16 : n;
-
-        synchronized (_display) {
-            for (int row = 0; row < sprintHeight; row++) {
-                int spritRowData = n == 0 ?
-                    _memory[_i + (row * 2)] << 8 | _memory[_i + (row * 2) + 1] :
-                    _memory[_i + row];
-                int xOffset = xStart;
-
-                for (int bit = 0; bit < spriteWidth; bit++) {
-                    int spriteBit = (spritRowData & (1 << (spriteWidth - 1 - bit)));
-                    int location = yOffset * _displayWidth + xOffset;
-                    byte pixel = _display[location];
-
-                    if (spriteBit > 0) {
-                        if (pixel != 0) {
-                            pixel = 0;
-                            _registers[0xf] = 1;
-                        } else {
-                            pixel = 1;
-                        }                                                
-                    }
-
-                    _display[location] = pixel;
-
-                    xOffset++;
-
-                    if (xOffset >= _displayWidth) {
-                        break;
-                    }
-                }
+        int spriteHeight = Math.min(n == 0 ? 16 : n, _displayHeight - yStart);
 
-                yOffset++;
+        int word = xStart >>> 6;
+        int shift = xStart & 63;
+        boolean spansWords = shift + spriteWidth > 64 && word + 1 < _wordsPerRow;
+        long collision = 0;
 
-                if (yOffset >= _displayHeight) {
-                    break;
-                }
+        for (int row = 0; row < spriteHeight; row++) {
+            int spriteRowData = n == 0 ?
+                (_memory[_i + (row * 2)] & 0xff) << 8 | (_memory[_i + (row * 2) + 1] & 0xff) :
+                _memory[_i + row] & 0xff;
+            long aligned = (long)spriteRowData << (64 - spriteWidth);
+            int index = (yStart + row) * _wordsPerRow + word;
+
+            long bits = aligned >>> shift;
+            collision |= _display[index] & bits;
+            _display[index] ^= bits;
+
+            if (spansWords) {
+                long spill = aligned << (64 - shift);
+                collision |= _display[index + 1] & spill;
+                _display[index + 1] ^= spill;
             }
         }
+
+        _registers[0xf] = (short)(collision != 0 ? 1 : 0);
+        _dirtyRows |= (-1L >>> (64 - spriteHeight)) << yStart;
     }
 
-    private void scrollDown(int rows) {
-        synchronized (_display) {
-            int pixelsToMove = rows * _displayWidth;
-            System.arraycopy(_display, 0, _display, pixelsToMove, _display.length - pixelsToMove);
-            Arrays.fill(_display, 0, pixelsToMove, (byte)0);
-        }
+    // The scrolls work on the plane starting at the given word of the display
+    void scrollDown(int plane, int rows) {
+        _dirtyRows = -1L;
+
+        int wordsToMove = rows * _wordsPerRow;
+        int displayWords = _displayHeight * _wordsPerRow;
+        System.arraycopy(_display, plane, _display, plane + wordsToMove, displayWords - wordsToMove);
+        Arrays.fill(_display, plane, plane + wordsToMove, 0L);
     }
 
-    private void scrollLeft() {
-        synchronized (_display) {
-            for (int row = 0; row < _displayHeight; row++) {
-                int rowOffset = row * _displayWidth;
-                System.arraycopy(_display, rowOffset + 4, _display, rowOffset, _displayWidth - 4);
-                Arrays.fill(_display, rowOffset + _displayWidth - 4, rowOffset + _displayWidth, (byte)0);
+    void scrollLeft(int plane) {
+        _dirtyRows = -1L;
+
+        for (int row = 0; row < _displayHeight; row++) {
+            int rowOffset = plane + row * _wordsPerRow;
+            int last = rowOffset + _wordsPerRow - 1;
+
+            for (int word = rowOffset; word < last; word++) {
+                _display[word] = _display[word] << 4 | _display[word + 1] >>> 60;
             }
+
+            _display[last] <<= 4;
         }
     }
 
-    private void scrollRight() {
-        synchronized (_display) {
-            for (int row = 0; row < _displayHeight; row++) {
-                int rowOffset = row * _displayWidth;
-                System.arraycopy(_display, rowOffset, _display, rowOffset + 4, _displayWidth - 4);
-                Arrays.fill(_display, rowOffset, rowOffset + 4, (byte)0);
+    void scrollRight(int plane) {
+        _dirtyRows = -1L;
+
+        for (int row = 0; row < _displayHeight; row++) {
+            int rowOffset = plane + row * _wordsPerRow;
+
+            for (int word = rowOffset + _wordsPerRow - 1; word > rowOffset; word--) {
+                _display[word] = _display[word] >>> 4 | _display[word - 1] << 60;
             }
+
+            _display[rowOffset] >>>= 4;
         }
     }
 }
@@ -3,18 +3,19 @@ package com.github.ikeras;
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.scene.Scene;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.Image;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.sound.sampled.LineUnavailableException;
+
 import org.apache.commons.cli.*;
 
 public class Chip extends Application {
@@ -47,10 +48,34 @@ public class Chip extends Application {
     private final class UtzOptions {
         private String _romPath;
         private int _instructionsPerSecond;
-
-        public UtzOptions(String romPath, int instructionsPerSecond) {
+        private boolean _useRecompiler;
+        private int _rewindSeconds;
+        private String _recordingPath;
+        private boolean _turbo;
+        private String _profileDirectory;
+        private QuirkProfile _quirks;
+        private boolean _mute;
+        private Palette _palette;
+        private int _persistence;
+        private boolean _upscale;
+        private String _videoPath;
+        private int _videoScale;
+
+        public UtzOptions(String romPath, int instructionsPerSecond, boolean useRecompiler, int rewindSeconds, String recordingPath, boolean turbo, String profileDirectory, QuirkProfile quirks, boolean mute, Palette palette, int persistence, boolean upscale, String videoPath, int videoScale) {
             _romPath = romPath;
             _instructionsPerSecond = instructionsPerSecond;
+            _useRecompiler = useRecompiler;
+            _rewindSeconds = rewindSeconds;
+            _recordingPath = recordingPath;
+            _turbo = turbo;
+            _profileDirectory = profileDirectory;
+            _quirks = quirks;
+            _mute = mute;
+            _palette = palette;
+            _persistence = persistence;
+            _upscale = upscale;
+            _videoPath = videoPath;
+            _videoScale = videoScale;
         }
 
         public String getRomPath() {
@@ -60,108 +85,263 @@ public class Chip extends Application {
         public int getInstructionsPerSecond() {
             return _instructionsPerSecond;
         }
+
+        public boolean useRecompiler() {
+            return _useRecompiler;
+        }
+
+        public int getRewindSeconds() {
+            return _rewindSeconds;
+        }
+
+        public String getRecordingPath() {
+            return _recordingPath;
+        }
+
+        public boolean isTurbo() {
+            return _turbo;
+        }
+
+        public String getProfileDirectory() {
+            return _profileDirectory;
+        }
+
+        public QuirkProfile getQuirks() {
+            return _quirks;
+        }
+
+        public boolean isMute() {
+            return _mute;
+        }
+
+        public Palette getPalette() {
+            return _palette;
+        }
+
+        public int getPersistence() {
+            return _persistence;
+        }
+
+        public boolean upscale() {
+            return _upscale;
+        }
+
+        public String getVideoPath() {
+            return _videoPath;
+        }
+
+        public int getVideoScale() {
+            return _videoScale;
+        }
     }
 
+    // Fixed viewport: 10x for 64x32 and 5x for 128x64, so switching resolution never resizes the stage
+    private static final int VIEWPORT_WIDTH = 640;
+    private static final int VIEWPORT_HEIGHT = 320;
+    private static final String TITLE = "Utz Chip-8 emulator";
+
     private Emulator _emulator;
+    private Thread _emulationThread;
+    private LineSink _audio;
     private boolean _isRunning;
-    private int _displayHeight;
-    private int _displayWidth;
 
     public void start(Stage primaryStage) throws Exception {
         UtzOptions options = parseArgs(getParameters().getRaw().toArray(new String[0]));
 
-        _displayHeight = 0;
-        _displayWidth = 0;
-        _emulator = new Emulator();
-        _emulator.loadRom(options.getRomPath());
+        // Read once, both to detect the platform and to load
+        byte[] rom = Files.readAllBytes(Paths.get(options.getRomPath()));
+        QuirkProfile quirks = options.getQuirks();
+        if (quirks == null) {
+            quirks = QuirkProfile.forPlatform(Platform.detect(rom));
+        }
+
+        _emulator = new Emulator(options.useRecompiler(), quirks);
+        _emulator.loadRom(options.getRomPath(), rom);
+
+        if (options.getRewindSeconds() > 0) {
+            _emulator.enableRewind(options.getRewindSeconds());
+        }
+
+        _emulator.setTurbo(options.isTurbo());
+
+        if (!options.isMute()) {
+            try {
+                _audio = new LineSink();
+                _emulator.enableAudio(_audio);
+            } catch (LineUnavailableException | IllegalArgumentException e) {
+                System.err.println("Running without sound: " + e.getMessage());
+            }
+        }
+
+        if (options.getProfileDirectory() != null) {
+            _emulator.startProfiling(Profiler.DEFAULT_SAMPLE_INTERVAL);
+        }
+
+        if (options.getRecordingPath() != null) {
+            _emulator.startRecording(Paths.get(options.getRecordingPath()), options.getInstructionsPerSecond());
+        }
+
+        // A live session drops frames rather than slow down if the encoder can't keep up
+        if (options.getVideoPath() != null) {
+            _emulator.startVideo(Paths.get(options.getVideoPath()), options.getPalette(), options.getVideoScale(), false);
+        }
+
+        // Post-processing only runs when asked for; a palette on its own is applied as frames are drawn
+        PostProcessor postProcessor = null;
+        if (options.getPersistence() > 1 || options.upscale()) {
+            postProcessor = new PostProcessor(options.getPalette(), options.getPersistence(), VIEWPORT_WIDTH);
+        }
+
+        FrameRenderer renderer = new FrameRenderer(VIEWPORT_WIDTH, VIEWPORT_HEIGHT, options.getPalette(), postProcessor);
+        if (Metrics.ENABLED) {
+            Metrics metrics = new Metrics(_emulator, renderer);
+            metrics.register();
+
+            int logSeconds = Integer.getInteger("utz.metrics.log", 0);
+            if (logSeconds > 0) {
+                metrics.startLogging(logSeconds);
+            }
+        }
 
-        Canvas canvas = new Canvas();
         StackPane root = new StackPane();
-        root.getChildren().add(canvas);
+        root.getChildren().add(renderer.getView());
 
-        Scene scene = new Scene(root);
+        Scene scene = new Scene(root, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+
+        // F5 saves next to the ROM, F9 restores from there, holding backspace rewinds, tab toggles turbo
+        // and F2 prints the last instructions executed
+        Path statePath = Paths.get(options.getRomPath() + ".state");
 
         scene.setOnKeyPressed(event -> {
             if (javafxKeysToChip8Keys.containsKey(event.getCode())) {
                 _emulator.pressKey(javafxKeysToChip8Keys.get(event.getCode()));
+            } else if (event.getCode() == KeyCode.F5) {
+                _emulator.runOnEmulationThread(() -> saveState(statePath));
+            } else if (event.getCode() == KeyCode.F9) {
+                _emulator.runOnEmulationThread(() -> restoreState(statePath));
+            } else if (event.getCode() == KeyCode.BACK_SPACE) {
+                _emulator.setRewinding(true);
+            } else if (event.getCode() == KeyCode.TAB) {
+                _emulator.setTurbo(!_emulator.isTurbo());
+            } else if (event.getCode() == KeyCode.F2) {
+                _emulator.runOnEmulationThread(() -> System.out.print(_emulator.getTrace()));
             }
         });
 
         scene.setOnKeyReleased(event -> {
             if (javafxKeysToChip8Keys.containsKey(event.getCode())) {
                 _emulator.releaseKey(javafxKeysToChip8Keys.get(event.getCode()));
+            } else if (event.getCode() == KeyCode.BACK_SPACE) {
+                _emulator.setRewinding(false);
             }
         });
 
         primaryStage.setScene(scene);
-        primaryStage.setTitle("Utz Chip-8 emulator");
+        primaryStage.setTitle(TITLE);
         primaryStage.setResizable(false);
         primaryStage.show();
 
         _isRunning = true;
 
-        Thread thread = new Thread(() -> {
+        _emulationThread = new Thread(() -> {
             _emulator.startOrContinue(options.getInstructionsPerSecond());
+
+            try {
+                _emulator.stopRecording();
+            } catch (IOException e) {
+                System.err.println("Unable to finish recording: " + e.getMessage());
+            }
+
+            try {
+                long dropped = _emulator.stopVideo();
+                if (dropped > 0) {
+                    System.err.println("Video dropped " + dropped + " frames the encoder couldn't keep up with");
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to finish video: " + e.getMessage());
+            }
+
+            if (options.getProfileDirectory() != null) {
+                writeProfile(Paths.get(options.getProfileDirectory()), Paths.get(options.getRomPath()).getFileName().toString());
+            }
         });
-        thread.start();
+        _emulationThread.setDaemon(true);
+        _emulationThread.start();
 
         new AnimationTimer() {
-            private GraphicsContext _gc = null;
+            private long _lastTitleUpdate = 0;
 
             public void handle(long currentTime) {
                 if (_isRunning) {
-                    if (_displayHeight != _emulator.getDisplayHeight() || _displayWidth != _emulator.getDisplayWidth()) {
-                        _gc = createDisplay(primaryStage, canvas, _emulator.getDisplayWidth(), _emulator.getDisplayHeight());
-                        _gc.setImageSmoothing(false);
-                    }
+                    renderer.render(_emulator.acquireFrame());
 
-                    Image image = createImageFromBytes(_emulator.getDisplay(), _emulator.getDisplayWidth(), _emulator.getDisplayHeight());                    
-                    _gc.drawImage(image, 0, 0, canvas.getWidth(), canvas.getHeight());
-
-                    _emulator.tick();
+                    if (currentTime - _lastTitleUpdate >= 1_000_000_000L) {
+                        _lastTitleUpdate = currentTime;
+                        primaryStage.setTitle(getStatusTitle());
+                    }
                 }
             }
         }.start();
     }
 
-    public void stop() {
-        _emulator.stop();
-        _isRunning = false;
-    }
+    private String getStatusTitle() {
+        String title;
+        if (_emulator.isTurbo()) {
+            title = String.format("%s - turbo %.2f MIPS, %.0f%% of frames skipped", TITLE, _emulator.getAchievedInstructionsPerSecond() / 1e6, _emulator.getFrameSkipRatio() * 100);
+        } else {
+            title = String.format("%s - %.0f/%d ips", TITLE, _emulator.getAchievedInstructionsPerSecond(), _emulator.getTargetInstructionsPerSecond());
+        }
 
-    public static void main(String[] args) {
-        launch(args);
+        if (_emulator.getRewindCapacityBytes() > 0) {
+            title += String.format(" - rewind %.1fs in %d/%d KB", _emulator.getRewindSeconds(), _emulator.getRewindUsedBytes() / 1024, _emulator.getRewindCapacityBytes() / 1024);
+        }
+
+        return title;
     }
 
-    private GraphicsContext createDisplay(Stage stage, Canvas canvas, int width, int height) {
-        _displayWidth = width;
-        _displayHeight = height;
+    public void stop() throws InterruptedException {
+        _emulator.stop();
+        _isRunning = false;
 
-        // Set the size of the Stage to account for the non-client area
-        double nonClientWidth = stage.getWidth() - stage.getScene().getWidth();
-        double nonClientHeight = stage.getHeight() - stage.getScene().getHeight();
-        stage.setWidth(_emulator.getDisplayWidth() * 10 + nonClientWidth);
-        stage.setHeight(_emulator.getDisplayHeight() * 10 + nonClientHeight);
+        // Let the emulation thread finish its frame and close the recording and video before the JVM exits
+        _emulationThread.join(1000);
 
-        canvas.setWidth(width * 10);
-        canvas.setHeight(height * 10);
+        if (_audio != null) {
+            try {
+                _audio.close();
+            } catch (IOException e) {
+                System.err.println("Unable to stop sound: " + e.getMessage());
+            }
+        }
+    }
 
-        return canvas.getGraphicsContext2D();
+    private void saveState(Path path) {
+        try {
+            _emulator.saveState(path);
+        } catch (IOException e) {
+            System.err.println("Unable to save state to " + path + ": " + e.getMessage());
+        }
     }
 
-    private Image createImageFromBytes(byte[] bytes, int width, int height) {
-        WritableImage image = new WritableImage(width, height);
-        PixelWriter writer = image.getPixelWriter();
-        for (int y = 0; y < height; y++) {
-            int rowStart = y * width;
-            for (int x = 0; x < width; x++) {
-                int pixelStart = rowStart + x;
-                int pixel = bytes[pixelStart] == 0 ? 0xFF000000 : 0xFFFFFFFF;
-                writer.setArgb(x, y, pixel);
-            }
+    private void restoreState(Path path) {
+        try {
+            _emulator.restoreState(path);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            System.err.println("Unable to restore state from " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void writeProfile(Path directory, String name) {
+        try {
+            Files.createDirectories(directory);
+            _emulator.writeProfile(directory.resolve(name + ".pcs.txt"), directory.resolve(name + ".folded"));
+        } catch (IOException e) {
+            System.err.println("Unable to write profile to " + directory + ": " + e.getMessage());
         }
+    }
 
-        return image;
+    public static void main(String[] args) {
+        launch(args);
     }
 
     private UtzOptions parseArgs(String[] args) {
@@ -169,10 +349,27 @@ public class Chip extends Application {
         Options options = new Options();
         options.addOption("h", "help", false, "Print this help message");
         options.addOption("s", "speed", true, "Number of operations to emulate per second");
+        options.addOption("j", "jit", false, "Execute through the block recompiler instead of the interpreter");
+        options.addOption("r", "rewind", true, "Seconds of play to keep for rewinding with backspace, 0 to disable (default 60)");
+        options.addOption("t", "turbo", false, "Start in turbo mode, running as fast as possible (toggle with tab)");
+        options.addOption("p", "profile", true, "Profile the ROM on the interpreter and write its pc histogram and collapsed stacks to this directory on exit");
+        options.addOption("q", "quirks", true, "Quirk profile to run with: CHIP8, LENIENT, VIP, SCHIP or XOCHIP (default: from the platform the ROM is detected as)");
+        options.addOption("m", "mute", false, "Run without sound");
+        options.addOption(null, "palette", true, "Colours to draw with: CLASSIC, AMBER, GREEN or LCD (default CLASSIC)");
+        options.addOption(null, "persistence", true, "Average each pixel over this many frames, up to 8, to hide flicker (default 1, off)");
+        options.addOption(null, "upscale", false, "Scale frames up in software by a whole number instead of letting the view stretch them");
+        options.addOption(null, "video", true, "Record what is shown to an animated GIF, or an APNG for a .png file");
+        options.addOption(null, "video-scale", true, "Draw each pixel of the video as a block this many pixels across, up to " + VideoEncoder.MAX_SCALE + ", doubled in low resolution (default 4)");
+        options.addOption(null, "record", true, "Record key input to the given file for Replay; disables rewinding and restoring state");
 
         try {
             CommandLine cmd = parser.parse(options, args);
             int instructionsPerSecond = 700;
+            int rewindSeconds = 60;
+            QuirkProfile quirks = null;
+            Palette palette = Palette.CLASSIC;
+            int persistence = 1;
+            int videoScale = 4;
             String[] appArgs = cmd.getArgs();
 
             if (cmd.hasOption("help") || appArgs.length < 1) {
@@ -185,10 +382,36 @@ public class Chip extends Application {
                 instructionsPerSecond = Integer.parseInt(cmd.getOptionValue("speed").trim());
             }
 
+            if (cmd.hasOption("rewind")) {
+                rewindSeconds = Integer.parseInt(cmd.getOptionValue("rewind").trim());
+            }
+
+            if (cmd.hasOption("quirks")) {
+                quirks = QuirkProfile.parse(cmd.getOptionValue("quirks"));
+            }
+
+            if (cmd.hasOption("palette")) {
+                palette = Palette.parse(cmd.getOptionValue("palette"));
+            }
+
+            if (cmd.hasOption("persistence")) {
+                persistence = Integer.parseInt(cmd.getOptionValue("persistence").trim());
+                if (persistence < 1 || persistence > PostProcessor.MAX_PERSISTENCE) {
+                    throw new IllegalArgumentException("Persistence must be between 1 and " + PostProcessor.MAX_PERSISTENCE + " frames");
+                }
+            }
+
+            if (cmd.hasOption("video-scale")) {
+                videoScale = Integer.parseInt(cmd.getOptionValue("video-scale").trim());
+                if (videoScale < 1 || videoScale > VideoEncoder.MAX_SCALE) {
+                    throw new IllegalArgumentException("Video scale must be between 1 and " + VideoEncoder.MAX_SCALE);
+                }
+            }
+
             String romPath = appArgs[0];
 
-            return new UtzOptions(romPath, instructionsPerSecond);
-        } catch (ParseException e) {
+            return new UtzOptions(romPath, instructionsPerSecond, cmd.hasOption("jit"), rewindSeconds, cmd.getOptionValue("record"), cmd.hasOption("turbo"), cmd.getOptionValue("profile"), quirks, cmd.hasOption("mute"), palette, persistence, cmd.hasOption("upscale"), cmd.getOptionValue("video"), videoScale);
+        } catch (ParseException | IllegalArgumentException e) {
             System.err.println("Error parsing command line arguments: " + e.getMessage());
             System.exit(1);
         }
@@ -0,0 +1,8 @@
+package com.github.ikeras;
+
+// A run of CHIP-8 instructions translated to JVM bytecode by the Recompiler
+interface CompiledBlock {
+    // Executes the block against the given CPU without running more than budget instructions, and
+    // returns the number of instructions it ran
+    int execute(CPU cpu, int budget);
+}
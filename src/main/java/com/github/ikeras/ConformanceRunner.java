@@ -0,0 +1,290 @@
+package com.github.ikeras;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.*;
+
+// Golden-frame conformance suite. Every ROM in the suite directory is run headless on both backends
+// for the instruction budget recorded next to it in golden/golden.txt, and the final display hash
+// must match the recorded one. On a mismatch the expected frame (golden/<rom>.pbm) and the actual
+// one are written to the output directory as PBM images to compare. --update records the current
+// results as the new golden frames instead.
+public class ConformanceRunner {
+    private static final String GOLDEN_DIRECTORY = "golden";
+    private static final String GOLDEN_FILE = "golden.txt";
+    // Only sizes the frames the budget is split into, so the timers tick at the usual rate
+    private static final int INSTRUCTIONS_PER_SECOND = 700;
+
+    private final class ConformanceOptions {
+        private final Path _suite;
+        private final Path _output;
+        private final long _instructions;
+        private final boolean _update;
+
+        public ConformanceOptions(Path suite, Path output, long instructions, boolean update) {
+            _suite = suite;
+            _output = output;
+            _instructions = instructions;
+            _update = update;
+        }
+
+        public Path getSuite() {
+            return _suite;
+        }
+
+        public Path getOutput() {
+            return _output;
+        }
+
+        public long getInstructions() {
+            return _instructions;
+        }
+
+        public boolean update() {
+            return _update;
+        }
+    }
+
+    private static final class Golden {
+        private final long _hash;
+        private final long _instructions;
+
+        Golden(long hash, long instructions) {
+            _hash = hash;
+            _instructions = instructions;
+        }
+    }
+
+    private static final class Result {
+        private final Path _rom;
+        private final boolean _useRecompiler;
+        private final long _instructions;
+        private final byte[] _display;
+        private final int _width;
+        private final int _height;
+        private final Throwable _error;
+
+        Result(Path rom, boolean useRecompiler, long instructions, byte[] display, int width, int height, Throwable error) {
+            _rom = rom;
+            _useRecompiler = useRecompiler;
+            _instructions = instructions;
+            _display = display;
+            _width = width;
+            _height = height;
+            _error = error;
+        }
+
+        long getHash() {
+            return Hashing.fnv1a(_display);
+        }
+
+        String getBackend() {
+            return _useRecompiler ? "recompiler" : "interpreter";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ConformanceRunner runner = new ConformanceRunner();
+        ConformanceOptions options = runner.parseArgs(args);
+        long startTime = System.nanoTime();
+
+        Path goldenDirectory = options.getSuite().resolve(GOLDEN_DIRECTORY);
+        Map<String, Golden> goldens = readGoldens(goldenDirectory.resolve(GOLDEN_FILE));
+
+        List<Path> roms = BatchRunner.findRoms(new String[] { options.getSuite().toString() });
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Result>> futures = new ArrayList<>();
+
+        try {
+            for (Path rom : roms) {
+                Golden golden = goldens.get(rom.getFileName().toString());
+                long instructions = options.update() || golden == null ? options.getInstructions() : golden._instructions;
+                futures.add(executor.submit(() -> run(rom, false, instructions)));
+                futures.add(executor.submit(() -> run(rom, true, instructions)));
+            }
+
+            int failures = 0;
+            Map<String, Result> updated = new LinkedHashMap<>();
+            Set<String> rejected = new HashSet<>();
+
+            for (Future<Result> future : futures) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Conformance run failed unexpectedly", e.getCause());
+                }
+
+                String name = result._rom.getFileName().toString();
+                Golden golden = goldens.get(name);
+
+                if (result._error != null) {
+                    failures++;
+                    rejected.add(name);
+                    System.out.printf("FAIL  %-11s %-45s %s%n", result.getBackend(), name, result._error);
+                } else if (options.update()) {
+                    // Both backends have to agree before their frame can become the reference
+                    Result other = updated.putIfAbsent(name, result);
+                    if (other != null && other.getHash() != result.getHash()) {
+                        failures++;
+                        rejected.add(name);
+                        System.out.printf("FAIL  %-11s %-45s differs from the %s, not updated%n", result.getBackend(), name, other.getBackend());
+                    }
+                } else if (golden == null) {
+                    failures++;
+                    System.out.printf("FAIL  %-11s %-45s no golden frame, run with --update%n", result.getBackend(), name);
+                    writeImage(options.getOutput().resolve(name + "." + result.getBackend() + ".pbm"), result);
+                } else if (golden._hash != result.getHash()) {
+                    failures++;
+                    Files.createDirectories(options.getOutput());
+                    Path expected = options.getOutput().resolve(name + ".expected.pbm");
+                    Files.copy(goldenDirectory.resolve(name + ".pbm"), expected, StandardCopyOption.REPLACE_EXISTING);
+                    Path actual = options.getOutput().resolve(name + "." + result.getBackend() + ".pbm");
+                    writeImage(actual, result);
+                    System.out.printf("FAIL  %-11s %-45s hash=%016x expected %016x, see %s and %s%n", result.getBackend(), name, result.getHash(), golden._hash, expected, actual);
+                } else {
+                    System.out.printf("OK    %-11s %-45s hash=%016x%n", result.getBackend(), name, result.getHash());
+                }
+            }
+
+            if (options.update()) {
+                updated.keySet().removeAll(rejected);
+                writeGoldens(goldenDirectory, updated);
+                System.out.printf("Recorded %d golden frames in %s%n", updated.size(), goldenDirectory);
+            }
+
+            System.out.printf("%d ROMs on 2 backends, %d failed in %.0fms%n", roms.size(), failures, (System.nanoTime() - startTime) / 1e6);
+            System.exit(failures == 0 ? 0 : 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Result run(Path rom, boolean useRecompiler, long instructions) {
+        Emulator emulator = new Emulator(useRecompiler);
+        emulator.setRandomSeed(0);
+
+        try {
+            emulator.loadRom(rom.toString());
+
+            long executed = 0;
+            while (executed < instructions) {
+                int batch = (int)Math.min(instructions - executed, Scheduler.instructionsForFrame(emulator.getFrameNumber(), INSTRUCTIONS_PER_SECOND));
+                emulator.runFrame(batch);
+                executed += batch;
+            }
+
+            return new Result(rom, useRecompiler, instructions, emulator.getDisplay(), emulator.getDisplayWidth(), emulator.getDisplayHeight(), null);
+        } catch (Exception e) {
+            return new Result(rom, useRecompiler, instructions, null, 0, 0, e);
+        }
+    }
+
+    // Lines of "<hash> <instructions> <rom file name>"; # starts a comment
+    private static Map<String, Golden> readGoldens(Path path) throws IOException {
+        Map<String, Golden> goldens = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return goldens;
+        }
+
+        for (String line : Files.readAllLines(path)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split(" ", 3);
+            goldens.put(fields[2], new Golden(Long.parseUnsignedLong(fields[0], 16), Long.parseLong(fields[1])));
+        }
+
+        return goldens;
+    }
+
+    private static void writeGoldens(Path directory, Map<String, Result> results) throws IOException {
+        Files.createDirectories(directory);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(GOLDEN_FILE))) {
+            writer.write("# Final display hash, instruction budget and ROM, checked by ConformanceRunner; regenerate with --update");
+            writer.newLine();
+
+            for (Result result : results.values()) {
+                String name = result._rom.getFileName().toString();
+                writer.write(String.format("%016x %d %s", result.getHash(), result._instructions, name));
+                writer.newLine();
+                writeImage(directory.resolve(name + ".pbm"), result);
+            }
+        }
+    }
+
+    // Plain (ASCII) PBM, so golden frames diff and review as text
+    private static void writeImage(Path path, Result result) throws IOException {
+        Files.createDirectories(path.getParent());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write(String.format("P1%n# %s after %d instructions%n%d %d%n", result._rom.getFileName(), result._instructions, result._width, result._height));
+
+            StringBuilder line = new StringBuilder();
+            for (int pixel = 0; pixel < result._display.length; pixel++) {
+                line.append(result._display[pixel] != 0 ? '1' : '0');
+
+                // PBM lines are meant to stay under 70 characters
+                if (line.length() == 64) {
+                    writer.write(line.toString());
+                    writer.newLine();
+                    line.setLength(0);
+                }
+            }
+        }
+    }
+
+    private ConformanceOptions parseArgs(String[] args) {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("o", "output", true, "Directory for the images of failing ROMs (default target/conformance)");
+        options.addOption("i", "instructions", true, "Instruction budget for ROMs without a golden frame, or all of them with --update (default 20000)");
+        options.addOption("u", "update", false, "Record the current results as the golden frames");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            Path output = Paths.get("target", "conformance");
+            long instructions = 20_000;
+            String[] appArgs = cmd.getArgs();
+
+            if (cmd.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("ConformanceRunner [options] [suite directory, default roms/tests]", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("output")) {
+                output = Paths.get(cmd.getOptionValue("output"));
+            }
+
+            if (cmd.hasOption("instructions")) {
+                instructions = Long.parseLong(cmd.getOptionValue("instructions").trim());
+            }
+
+            return new ConformanceOptions(Paths.get(appArgs.length > 0 ? appArgs[0] : "roms/tests"), output, instructions, cmd.hasOption("update"));
+        } catch (ParseException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.ikeras;
+
+// Formats decoded instructions (operation << 16 | opcode, as in the CPU's decode table) using the
+// usual Cowgod-style mnemonics
+final class Disassembler {
+    private Disassembler() {
+    }
+
+    static String disassemble(int decoded) {
+        int opcode = decoded & 0xffff;
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        int n = opcode & 0x0f;
+        int kk = opcode & 0xff;
+        int nnn = opcode & 0xfff;
+
+        switch (decoded >>> 16) {
+            case CPU.OP_SYS:
+                return String.format("SYS 0x%03X", nnn);
+            case CPU.OP_CLS:
+                return "CLS";
+            case CPU.OP_SCROLL_DOWN:
+                return "SCD " + n;
+            case CPU.OP_RET:
+                return "RET";
+            case CPU.OP_SCROLL_RIGHT:
+                return "SCR";
+            case CPU.OP_SCROLL_LEFT:
+                return "SCL";
+            case CPU.OP_LOW_RES:
+                return "LOW";
+            case CPU.OP_HIGH_RES:
+                return "HIGH";
+            case CPU.OP_JP:
+                return String.format("JP 0x%03X", nnn);
+            case CPU.OP_CALL:
+                return String.format("CALL 0x%03X", nnn);
+            case CPU.OP_SE_IMMEDIATE:
+                return String.format("SE V%X, 0x%02X", x, kk);
+            case CPU.OP_SNE_IMMEDIATE:
+                return String.format("SNE V%X, 0x%02X", x, kk);
+            case CPU.OP_SE_REGISTER:
+                return String.format("SE V%X, V%X", x, y);
+            case CPU.OP_LD_IMMEDIATE:
+                return String.format("LD V%X, 0x%02X", x, kk);
+            case CPU.OP_ADD_IMMEDIATE:
+                return String.format("ADD V%X, 0x%02X", x, kk);
+            case CPU.OP_LD_REGISTER:
+                return String.format("LD V%X, V%X", x, y);
+            case CPU.OP_OR:
+                return String.format("OR V%X, V%X", x, y);
+            case CPU.OP_AND:
+                return String.format("AND V%X, V%X", x, y);
+            case CPU.OP_XOR:
+                return String.format("XOR V%X, V%X", x, y);
+            case CPU.OP_ADD_REGISTER:
+                return String.format("ADD V%X, V%X", x, y);
+            case CPU.OP_SUB:
+                return String.format("SUB V%X, V%X", x, y);
+            case CPU.OP_SHR:
+                return String.format("SHR V%X, V%X", x, y);
+            case CPU.OP_SUBN:
+                return String.format("SUBN V%X, V%X", x, y);
+            case CPU.OP_SHL:
+                return String.format("SHL V%X, V%X", x, y);
+            case CPU.OP_SNE_REGISTER:
+                return String.format("SNE V%X, V%X", x, y);
+            case CPU.OP_LD_I:
+                return String.format("LD I, 0x%03X", nnn);
+            case CPU.OP_JP_V0:
+                return String.format("JP V0, 0x%03X", nnn);
+            case CPU.OP_RND:
+                return String.format("RND V%X, 0x%02X", x, kk);
+            case CPU.OP_DRW:
+                return String.format("DRW V%X, V%X, %d", x, y, n);
+            case CPU.OP_SKP:
+                return String.format("SKP V%X", x);
+            case CPU.OP_SKNP:
+                return String.format("SKNP V%X", x);
+            case CPU.OP_LD_VX_DT:
+                return String.format("LD V%X, DT", x);
+            case CPU.OP_LD_VX_K:
+                return String.format("LD V%X, K", x);
+            case CPU.OP_LD_DT:
+                return String.format("LD DT, V%X", x);
+            case CPU.OP_LD_ST:
+                return String.format("LD ST, V%X", x);
+            case CPU.OP_ADD_I:
+                return String.format("ADD I, V%X", x);
+            case CPU.OP_LD_F:
+                return String.format("LD F, V%X", x);
+            case CPU.OP_LD_HF:
+                return String.format("LD HF, V%X", x);
+            case CPU.OP_LD_B:
+                return String.format("LD B, V%X", x);
+            case CPU.OP_LD_MEMORY_VX:
+                return String.format("LD [I], V%X", x);
+            case CPU.OP_LD_VX_MEMORY:
+                return String.format("LD V%X, [I]", x);
+            case CPU.OP_LD_R_VX:
+                return String.format("LD R, V%X", x);
+            case CPU.OP_LD_VX_R:
+                return String.format("LD V%X, R", x);
+            case CPU.OP_SCROLL_UP:
+                return "SCU " + n;
+            case CPU.OP_SAVE_RANGE:
+                return String.format("LD [I], V%X-V%X", x, y);
+            case CPU.OP_LOAD_RANGE:
+                return String.format("LD V%X-V%X, [I]", x, y);
+            case CPU.OP_LD_I_LONG:
+                // The address is in the next word, which the decode table entry doesn't hold
+                return "LD I, LONG";
+            case CPU.OP_PLANE:
+                return "PLANE " + x;
+            case CPU.OP_LD_AUDIO:
+                return "LD AUDIO, [I]";
+            case CPU.OP_LD_PITCH:
+                return String.format("LD PITCH, V%X", x);
+            default:
+                return String.format("DW 0x%04X", opcode);
+        }
+    }
+}
@@ -1,25 +1,162 @@
 package com.github.ikeras;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Emulator {
-    private short[] memory = new short[4 * 1024];
-    private CPU cpu = new CPU(memory);
-    private boolean isExecuting = false;
+    private static final int ROM_ADDRESS = 0x200;
+    // The interpreter checks for Fx0A waiting once per this many instructions rather than after each
+    // one; running Fx0A a few more times while it waits changes nothing
+    private static final int KEY_WAIT_CHECK_INTERVAL = 64;
+    // Rewind arena per second of play, whatever the size of the state
+    private static final int REWIND_BYTES_PER_SECOND = 40 * 1024;
 
+    private final byte[] memory;
+    private final QuirkProfile quirks;
+    private final CPU cpu;
+    private FrameExchange frames = new FrameExchange();
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final InputQueue input = new InputQueue();
+    private volatile Scheduler scheduler;
+    private RewindBuffer rewind;
+    private volatile boolean isRewinding;
+    private volatile boolean isTurbo;
+    private InputRecorder recorder;
+    private long frameNumber;
+    private long seed = System.nanoTime();
+    private long romHash;
+    private volatile long metricsFrame;
+    private Profiler profiler;
+    private AudioGenerator audio;
+    private VideoRecorder video;
+    // When each key event applied since the last shown frame was queued, and the histogram of how long
+    // events took to reach a shown frame; only updated when Metrics.ENABLED
+    private final long[] pendingKeyTimes = new long[InputQueue.CAPACITY];
+    private int pendingKeys;
+    private final long[] keyLatencyHistogram = new long[Metrics.KEY_LATENCY_BUCKET_NANOS.length];
+    private long keyEvents;
+
+    public Emulator() {
+        this(false);
+    }
+
+    public Emulator(boolean useRecompiler) {
+        this(useRecompiler, QuirkProfile.CHIP8);
+    }
+
+    public Emulator(boolean useRecompiler, QuirkProfile quirks) {
+        this.quirks = quirks;
+        memory = new byte[quirks.getMemorySize()];
+        cpu = quirks.createCpu(memory);
+        if (useRecompiler) {
+            cpu.enableRecompiler();
+        }
+
+        cpu.setRandomSeed(seed);
+    }
+
+    // Maps the ROM and copies it into memory in one go, hashing it from there
     public void loadRom(String romPath) throws IOException {
-        byte[] rom = Files.readAllBytes(Paths.get(romPath));
-        for (int i = 0; i < rom.length; i++) {
-            memory[0x200 + i] = (short) (rom[i] & 0xFF);
-        }        
+        try (FileChannel channel = FileChannel.open(Paths.get(romPath), StandardOpenOption.READ)) {
+            long length = channel.size();
+            checkRomFits(romPath, length);
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, length).get(memory, ROM_ADDRESS, (int)length);
+            cpu.invalidate(ROM_ADDRESS, (int)length);
+            romHash = Hashing.fnv1a(memory, ROM_ADDRESS, (int)length);
+        }
+    }
+
+    // Copies in a ROM that has already been read, as when its platform was detected from it before the
+    // emulator was created
+    public void loadRom(String romPath, byte[] rom) throws IOException {
+        checkRomFits(romPath, rom.length);
+        System.arraycopy(rom, 0, memory, ROM_ADDRESS, rom.length);
+        cpu.invalidate(ROM_ADDRESS, rom.length);
+        romHash = Hashing.fnv1a(memory, ROM_ADDRESS, rom.length);
+    }
+
+    private void checkRomFits(String romPath, long length) throws IOException {
+        if (length > memory.length - ROM_ADDRESS) {
+            throw new IOException(String.format("%s is %d bytes, more than the %d that fit in memory from 0x%03x", romPath, length, memory.length - ROM_ADDRESS, ROM_ADDRESS));
+        }
+    }
+
+    // Seeds the RNG behind Cxkk. Emulators are seeded from the clock unless this is called.
+    public void setRandomSeed(long seed) {
+        this.seed = seed;
+        cpu.setRandomSeed(seed);
+    }
+
+    // Logs key events from here on against the frame number so the session can be replayed by
+    // Replay. Call before the first frame, after loading the ROM and seeding.
+    public void startRecording(Path path, int instructionsPerSecond) throws IOException {
+        recorder = new InputRecorder(path, seed, instructionsPerSecond, romHash, quirks);
     }
 
+    // Must be called on the emulation thread, or after it has finished
+    public void stopRecording() throws IOException {
+        if (recorder != null) {
+            try {
+                recorder.end(frameNumber, cpu.getStateDigest());
+            } finally {
+                recorder.close();
+                recorder = null;
+            }
+        }
+    }
+
+    // Streams the frames shown from here on to an animated GIF or PNG, chosen by the file's extension,
+    // each display pixel drawn as a scale x scale block (twice that in low resolution). With wait set,
+    // emulation waits for the encoder when it falls behind instead of dropping frames, as suits headless
+    // runs.
+    void startVideo(Path path, Palette palette, int scale, boolean wait) throws IOException {
+        video = new VideoRecorder(path, palette, scale, wait);
+    }
+
+    // Must be called on the emulation thread, or after it has finished. Returns the number of frames
+    // dropped while the encoder was behind.
+    long stopVideo() throws IOException {
+        if (video == null) {
+            return 0;
+        }
+
+        try {
+            return video.close();
+        } finally {
+            video = null;
+        }
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    long getRomHash() {
+        return romHash;
+    }
+
+    public long getFrameNumber() {
+        return frameNumber;
+    }
+
+    // Unpacked view of the live display; only safe to call from the thread running the emulator
     public byte[] getDisplay() {
         return cpu.getDisplay();
     }
 
+    // Newest frame published by the emulation thread. Safe to call from any one consumer thread;
+    // compare sequence numbers to skip frames that haven't changed.
+    public Frame acquireFrame() {
+        return frames.acquire();
+    }
+
     public int getDisplayWidth() {
         return cpu.getDisplayWidth();
     }
@@ -28,50 +165,334 @@ public class Emulator {
         return cpu.getDisplayHeight();
     }
 
+    // Key events are queued and applied at the start of the next frame, so a run depends only on
+    // the frame each event landed in and can be recorded and replayed exactly. Only one thread may
+    // press and release keys.
     public void pressKey(int key) {
-        cpu.pressKey(key);
+        input.offer(key, true);
     }
 
     public void releaseKey(int key) {
-        cpu.releaseKey(key);
+        input.offer(key, false);
     }
 
-    public void tick() {
-        cpu.tick();
+    void applyKey(int key, boolean pressed) {
+        if (pressed) {
+            cpu.pressKey(key);
+        } else {
+            cpu.releaseKey(key);
+        }
+
+        if (recorder != null) {
+            recorder.keyEvent(frameNumber, key, pressed);
+        }
     }
 
-    public void startOrContinue(int instructionsPerSecond) {
-        isExecuting = true;
+    // Queues work to run on the emulation thread between frames, e.g. saving or restoring state
+    // while the scheduler is running
+    public void runOnEmulationThread(Runnable task) {
+        tasks.add(task);
+    }
 
-        double delayTime = getDelayBetweenInstructions(instructionsPerSecond);
-        if (delayTime < 0) {
-            delayTime = 0;
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
         }
 
-        while (isExecuting) {
-            try {                
-                Thread.sleep((long) (delayTime * 1000));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        long event;
+        while ((event = input.poll()) != InputQueue.EMPTY) {
+            applyKey(InputQueue.getKey(event), InputQueue.isPressed(event));
+            if (Metrics.ENABLED && pendingKeys < pendingKeyTimes.length) {
+                pendingKeyTimes[pendingKeys++] = InputQueue.getTime(event);
+            }
+        }
+    }
+
+    // Hands the display to the renderer, and times the key events it is the first to show
+    private void publishDisplay() {
+        cpu.publishDisplay(frames);
+
+        if (video != null) {
+            video.capture(cpu);
+        }
+
+        if (Metrics.ENABLED && pendingKeys > 0) {
+            long now = input.now();
+            for (int i = 0; i < pendingKeys; i++) {
+                keyLatencyHistogram[Metrics.bucket(Metrics.KEY_LATENCY_BUCKET_NANOS, now - pendingKeyTimes[i])]++;
+            }
+
+            keyEvents += pendingKeys;
+            pendingKeys = 0;
+        }
+    }
+
+    public int getSaveStateSize() {
+        return cpu.getStateSize();
+    }
+
+    // Writes getSaveStateSize() bytes at the buffer's position. Like the state restore functions this
+    // must run on the emulation thread.
+    public void saveState(ByteBuffer buffer) {
+        cpu.saveState(buffer);
+    }
+
+    public void restoreState(ByteBuffer buffer) {
+        checkNotRecording();
+        cpu.restoreState(buffer);
+    }
+
+    public void saveState(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, cpu.getStateSize());
+            cpu.saveState(buffer);
+            buffer.force();
+        }
+    }
+
+    public void restoreState(Path path) throws IOException {
+        checkNotRecording();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            cpu.restoreState(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // A failure carries the disassembled trace of the instructions leading up to it as a suppressed
+    // exception, so it is printed along with the stack trace. Returns the number of instructions
+    // executed, which is less than count if Fx0A is left waiting for a key.
+    public long runInstructions(long count) {
+        try {
+            return executeInstructions(count);
+        } catch (RuntimeException e) {
+            e.addSuppressed(new RuntimeException(cpu.getTrace()));
+            throw e;
+        }
+    }
+
+    // The last instructions executed, disassembled; only safe to call from the thread running the emulator
+    public String getTrace() {
+        return cpu.getTrace();
+    }
+
+    // Stops early once Fx0A is waiting for a key: keys only change between frames, so the rest of
+    // the count would only repeat the wait. The emulation thread then parks until the next frame
+    // instead of spinning on Fx0A.
+    private long executeInstructions(long count) {
+        cpu.clearKeyWait();
+        long executed = 0;
+
+        if (profiler != null) {
+            // Profiling samples after an exact number of instructions, so it always runs on the interpreter
+            while (executed < count && !cpu.isWaitingForKey()) {
+                int batch = (int) Math.min(count - executed, profiler.getCountdown());
+                for (int i = 0; i < batch; i++) {
+                    cpu.executeNextInstruction();
+                }
+
+                executed += batch;
+                profiler.afterInstructions(batch, cpu);
+            }
+        } else if (cpu.isRecompilerEnabled()) {
+            while (executed < count && !cpu.isWaitingForKey()) {
+                executed += cpu.executeNextBlock((int) Math.min(count - executed, Integer.MAX_VALUE));
+            }
+        } else {
+            while (executed < count && !cpu.isWaitingForKey()) {
+                long batch = Math.min(count - executed, KEY_WAIT_CHECK_INTERVAL);
+                for (long i = 0; i < batch; i++) {
+                    cpu.executeNextInstruction();
+                }
+
+                executed += batch;
             }
-            
-            cpu.executeNextInstruction();
         }
+
+        return executed;
+    }
+
+    // Applies queued key events and tasks, then runs the frame. While rewinding, each frame steps back
+    // one captured frame instead of executing; rewinding is ignored while recording. Returns the
+    // number of instructions executed.
+    public int runFrame(int instructionsPerFrame) {
+        return runFrame(instructionsPerFrame, true);
     }
 
-    public double getDelayBetweenInstructions(int instructionsPerSecond) {
-        long startTime = System.nanoTime();
+    // Runs a frame but only hands the display to the renderer when publish is set. Dirty rows keep
+    // accumulating across skipped frames, so the next published frame still carries them.
+    int runFrame(int instructionsPerFrame, boolean publish) {
+        runPendingTasks();
+
+        if (video != null) {
+            video.nextFrame();
+        }
+
+        if (isRewinding && rewind != null && recorder == null) {
+            if (rewind.rewind(cpu) && publish) {
+                publishDisplay();
+            }
+
+            return 0;
+        }
+
+        int executed = (int)runInstructions(instructionsPerFrame);
+        // Sounds for this frame if the timer hasn't run out yet, so a timer set to n lasts n frames.
+        // Like rewinding, only shown frames make sound, so turbo doesn't flood the sink.
+        if (audio != null && publish) {
+            audio.generateFrame(cpu);
+        }
+
+        cpu.tick();
+        if (publish) {
+            publishDisplay();
+        }
+
+        frameNumber++;
+
+        if (Metrics.ENABLED) {
+            // Publishes this frame's counter updates to threads reading them through Metrics
+            metricsFrame = frameNumber;
+        }
+
+        if (recorder != null && frameNumber % InputRecorder.CHECKPOINT_INTERVAL == 0) {
+            recorder.checkpoint(frameNumber, cpu.getStateDigest());
+        }
 
-        for (int i = 0; i < instructionsPerSecond; i++) {
-            cpu.executeNextInstruction();
+        // Only frames that were shown are kept for rewinding, so a turbo stretch rewinds at the pace
+        // it was watched instead of flooding the buffer with millions of frames
+        if (rewind != null && publish) {
+            rewind.capture(cpu);
         }
 
-        long endTime = System.nanoTime();
+        return executed;
+    }
+
+    // Keeps up to the given number of seconds of frames for rewinding. A second is 59 deltas of
+    // typically a few dozen bytes and one keyframe, which costs about as much as the non-zero part of
+    // the state, so a fixed budget per second covers CHIP-8 and most XO-CHIP ROMs without reserving
+    // for 64 KB of memory that is mostly empty. If the arena still fills up, the oldest frames are
+    // dropped early.
+    public void enableRewind(int seconds) {
+        int frames = seconds * Scheduler.FRAMES_PER_SECOND;
+        rewind = new RewindBuffer(cpu.getStateSize(), frames, seconds * REWIND_BYTES_PER_SECOND);
+    }
+
+    // Sends a frame of samples to the sink for every frame shown from here on. Rewinding is silent.
+    void enableAudio(AudioSink sink) {
+        audio = new AudioGenerator(sink);
+    }
+
+    public void setRewinding(boolean rewinding) {
+        isRewinding = rewinding;
+    }
 
-        return (1 - (endTime - startTime) / 1e9) / instructionsPerSecond;
+    public double getRewindSeconds() {
+        return rewind == null ? 0 : rewind.getFrameCount() / (double)Scheduler.FRAMES_PER_SECOND;
+    }
+
+    public long getRewindUsedBytes() {
+        return rewind == null ? 0 : rewind.getUsedBytes();
+    }
+
+    public long getRewindCapacityBytes() {
+        return rewind == null ? 0 : rewind.getCapacityBytes();
+    }
+
+    // Samples the ROM's pc and call stack from here on, executing on the interpreter while profiling
+    public void startProfiling(int sampleInterval) {
+        profiler = new Profiler(memory.length, sampleInterval);
+    }
+
+    public boolean isProfiling() {
+        return profiler != null;
+    }
+
+    // Writes the pc histogram and the flame graph input. Must be called on the emulation thread, or
+    // after it has finished.
+    public void writeProfile(Path histogramPath, Path collapsedStacksPath) throws IOException {
+        profiler.write(histogramPath, collapsedStacksPath, cpu);
+    }
+
+    // Runs in real time on the calling thread, with the timers ticked at 60Hz, until stop() is called
+    public void startOrContinue(int instructionsPerSecond) {
+        scheduler = new Scheduler(this, instructionsPerSecond);
+        scheduler.run();
     }
 
     public void stop() {
-        isExecuting = false;
+        Scheduler current = scheduler;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    // Runs frames back to back as fast as the host allows, still ticking the timers once per frame
+    public void setTurbo(boolean turbo) {
+        isTurbo = turbo;
+    }
+
+    public boolean isTurbo() {
+        return isTurbo;
+    }
+
+    public double getFrameSkipRatio() {
+        Scheduler current = scheduler;
+        return current == null ? 0 : current.getFrameSkipRatio();
+    }
+
+    public int getTargetInstructionsPerSecond() {
+        Scheduler current = scheduler;
+        return current == null ? 0 : current.getTargetInstructionsPerSecond();
+    }
+
+    public double getAchievedInstructionsPerSecond() {
+        Scheduler current = scheduler;
+        return current == null ? 0 : current.getAchievedInstructionsPerSecond();
+    }
+
+    public long getLateFrames() {
+        Scheduler current = scheduler;
+        return current == null ? 0 : current.getLateFrames();
+    }
+
+    public long getDroppedFrames() {
+        Scheduler current = scheduler;
+        return current == null ? 0 : current.getDroppedFrames();
     }
+
+    long getMetricsFrame() {
+        return metricsFrame;
+    }
+
+    long[] getOperationCounts() {
+        return cpu.getOperationCounts();
+    }
+
+    long getDrawSpriteCalls() {
+        return cpu.getDrawSpriteCalls();
+    }
+
+    long getDrawSpriteNanos() {
+        return cpu.getDrawSpriteNanos();
+    }
+
+    long getKeyEvents() {
+        return keyEvents;
+    }
+
+    long[] getKeyLatencyHistogram() {
+        return keyLatencyHistogram;
+    }
+
+    long getStateDigest() {
+        return cpu.getStateDigest();
+    }
+
+    // A restore can't be replayed from key events alone
+    private void checkNotRecording() {
+        if (recorder != null) {
+            throw new IllegalStateException("Cannot restore state while recording");
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package com.github.ikeras;
+
+import java.util.Map;
+
+// Exposed over JMX as com.github.ikeras:type=Emulator when running with -Dutz.metrics=true
+public interface EmulatorMetricsMXBean {
+    double getInstructionsPerSecond();
+
+    long getInstructions();
+
+    // Executed instructions by operation, e.g. Drw or AddImmediate
+    Map<String, Long> getOperationCounts();
+
+    long getLateTicks();
+
+    long getDroppedTicks();
+
+    long getDrawSpriteCalls();
+
+    long getDrawSpriteNanos();
+
+    long getFramesRendered();
+
+    // Frames rendered by how long the render took, keyed by the bucket's upper bound
+    Map<String, Long> getFrameRenderTimes();
+
+    // Key events that have reached a shown frame
+    long getKeyEvents();
+
+    // Key events by how long they took from being queued to the first shown frame they applied to
+    Map<String, Long> getKeyLatencies();
+}
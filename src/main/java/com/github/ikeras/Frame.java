@@ -0,0 +1,85 @@
+package com.github.ikeras;
+
+// A published copy of the display. Pixels are packed 64 to a long with the leftmost pixel in the
+// most significant bit, row after row, and each of the PLANES planes follows the one before it
+// MAX_WORDS words on. A display with fewer planes leaves the rest clear. Frames are recycled by the
+// FrameExchange, so a consumer must not hold on to one after acquiring the next.
+public final class Frame {
+    static final int MAX_WORDS = 128 * 64 / 64;
+    static final int PLANES = 2;
+
+    private final long[] _pixels = new long[MAX_WORDS * PLANES];
+    private int _width = 64;
+    private int _height = 32;
+    private long _sequence;
+    private long _dirtyRows;
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getWordsPerRow() {
+        return _width / 64;
+    }
+
+    // Frames are numbered from 1 in publication order; 0 means nothing has been published yet
+    public long getSequence() {
+        return _sequence;
+    }
+
+    // Bit n is set if row n changed since the frame numbered getSequence() - 1. A consumer that
+    // skipped frames has to treat every row as dirty.
+    public long getDirtyRows() {
+        return _dirtyRows;
+    }
+
+    // A word of the first plane
+    public long getWord(int index) {
+        return _pixels[index];
+    }
+
+    public long getWord(int plane, int index) {
+        return _pixels[plane * MAX_WORDS + index];
+    }
+
+    public boolean isPixelSet(int x, int y) {
+        return getColor(x, y) != 0;
+    }
+
+    // The pixel's bit from plane n in bit n
+    public int getColor(int x, int y) {
+        int index = y * getWordsPerRow() + (x >>> 6);
+        int shift = 63 - (x & 63);
+        int color = 0;
+        for (int plane = 0; plane < PLANES; plane++) {
+            color |= (int)((_pixels[plane * MAX_WORDS + index] >>> shift) & 1) << plane;
+        }
+
+        return color;
+    }
+
+    // Unpacks to one byte per pixel in the given array, which must hold width * height bytes. Each
+    // byte holds the pixel's color as getColor returns it.
+    public void unpack(byte[] pixels) {
+        for (int y = 0, pixel = 0; y < _height; y++) {
+            for (int x = 0; x < _width; x++) {
+                pixels[pixel++] = (byte)getColor(x, y);
+            }
+        }
+    }
+
+    long[] getPixels() {
+        return _pixels;
+    }
+
+    void set(int width, int height, long sequence, long dirtyRows) {
+        _width = width;
+        _height = height;
+        _sequence = sequence;
+        _dirtyRows = dirtyRows;
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.ikeras;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Lock-free triple buffer between the emulation thread, which publishes a frame at each vblank, and
+// the renderer, which picks up the newest one. Neither side ever waits for the other and no frame is
+// allocated after construction; frames the renderer doesn't get to in time are simply dropped.
+final class FrameExchange {
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private final Frame[] _frames = new Frame[] { new Frame(), new Frame(), new Frame() };
+    // Index of the frame in the middle slot, plus FRESH if it was published but not yet acquired
+    private final AtomicInteger _middle = new AtomicInteger(1);
+    private int _back = 0;
+    private int _front = 2;
+    private long _sequence = 0;
+
+    // Producer side: the frame to fill in before calling publish()
+    Frame getBackFrame() {
+        return _frames[_back];
+    }
+
+    // Producer side: numbers the back frame and swaps it into the middle slot
+    void publish(int width, int height, long dirtyRows) {
+        _frames[_back].set(width, height, ++_sequence, dirtyRows);
+        _back = _middle.getAndSet(_back | FRESH) & INDEX_MASK;
+    }
+
+    // Consumer side: returns the newest published frame, which is the same one as last time if
+    // nothing new has been published since
+    Frame acquire() {
+        if ((_middle.get() & FRESH) != 0) {
+            _front = _middle.getAndSet(_front) & INDEX_MASK;
+        }
+
+        return _frames[_front];
+    }
+}
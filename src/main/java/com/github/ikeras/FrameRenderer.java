@@ -0,0 +1,172 @@
+package com.github.ikeras;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Callback;
+
+// Draws published frames into one persistent PixelBuffer-backed image per resolution. Only rows the
+// frame marks dirty are converted, and the image view keeps a fixed size so a resolution switch just
+// swaps the image instead of re-laying out the stage. Nothing is allocated per frame once every dirty
+// region shape has been seen. With a PostProcessor the images are its scaled-up output instead, and
+// the rows it reports changed are the ones copied.
+final class FrameRenderer {
+    private final class Surface implements Callback<PixelBuffer<IntBuffer>, Rectangle2D> {
+        private final int _width;
+        private final int _height;
+        private final int _scale;
+        private final IntBuffer _pixels;
+        private final PixelBuffer<IntBuffer> _pixelBuffer;
+        private final WritableImage _image;
+        private final Rectangle2D[] _regions;
+        private Frame _frame;
+        private long _dirtyRows;
+
+        Surface(int width, int height, int scale) {
+            _width = width;
+            _height = height;
+            _scale = scale;
+            _pixels = ByteBuffer.allocateDirect(width * height * scale * scale * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            _pixelBuffer = new PixelBuffer<>(width * scale, height * scale, _pixels, PixelFormat.getIntArgbPreInstance());
+            _image = new WritableImage(_pixelBuffer);
+            _regions = new Rectangle2D[height * height];
+        }
+
+        void draw(Frame frame, long dirtyRows) {
+            _frame = frame;
+            _dirtyRows = dirtyRows;
+            _pixelBuffer.updateBuffer(this);
+            _frame = null;
+        }
+
+        @Override
+        public Rectangle2D call(PixelBuffer<IntBuffer> pixelBuffer) {
+            int first = Long.numberOfTrailingZeros(_dirtyRows);
+            int last = Math.min(_height - 1, 63 - Long.numberOfLeadingZeros(_dirtyRows));
+
+            if (_postProcessor != null) {
+                _postProcessor.write(_pixels, _dirtyRows);
+            } else {
+                convertRows(first, last);
+            }
+
+            int region = first * _height + last;
+            if (_regions[region] == null) {
+                _regions[region] = new Rectangle2D(0, first * _scale, _width * _scale, (last - first + 1) * _scale);
+            }
+
+            return _regions[region];
+        }
+
+        private void convertRows(int first, int last) {
+            int wordsPerRow = _width / 64;
+            for (int y = first; y <= last; y++) {
+                if ((_dirtyRows & (1L << y)) == 0) {
+                    continue;
+                }
+
+                for (int word = 0, x = 0; word < wordsPerRow; word++) {
+                    long bits = _frame.getWord(0, y * wordsPerRow + word);
+                    long highBits = _frame.getWord(1, y * wordsPerRow + word);
+                    for (int shift = 63; shift >= 0; shift--) {
+                        _row[x++] = _palette[(int)((bits >>> shift) & 1 | ((highBits >>> shift) & 1) << 1)];
+                    }
+                }
+
+                _pixels.put(y * _width, _row, 0, _width);
+            }
+        }
+    }
+
+    private final ImageView _view = new ImageView();
+    // By pixel value, the first plane's bit in bit 0 and the second's in bit 1
+    private final int[] _palette;
+    private final PostProcessor _postProcessor;
+    private final Surface _lowResolution;
+    private final Surface _highResolution;
+    private final int[] _row = new int[128];
+    private Surface _current;
+    private long _lastSequence = -1;
+
+    // Render time histogram, only updated when Metrics.ENABLED and only from the FX thread
+    private final long[] _renderHistogram = new long[Metrics.RENDER_BUCKET_NANOS.length];
+    private volatile long _framesRendered;
+
+    // The post-processor, if any, should be sized for the same width
+    FrameRenderer(double width, double height, Palette palette, PostProcessor postProcessor) {
+        _palette = palette.getColors();
+        _postProcessor = postProcessor;
+        _lowResolution = new Surface(64, 32, postProcessor == null ? 1 : Math.max(1, (int)width / 64));
+        _highResolution = new Surface(128, 64, postProcessor == null ? 1 : Math.max(1, (int)width / 128));
+        _view.setFitWidth(width);
+        _view.setFitHeight(height);
+        _view.setSmooth(false);
+    }
+
+    ImageView getView() {
+        return _view;
+    }
+
+    // Reading this first makes the histogram up to date as of that frame
+    long getFramesRendered() {
+        return _framesRendered;
+    }
+
+    long[] getRenderHistogram() {
+        return _renderHistogram;
+    }
+
+    // Returns false if the frame was already drawn
+    boolean render(Frame frame) {
+        if (!Metrics.ENABLED) {
+            return drawFrame(frame);
+        }
+
+        long start = System.nanoTime();
+        boolean drawn = drawFrame(frame);
+        if (drawn) {
+            _renderHistogram[Metrics.renderBucket(System.nanoTime() - start)]++;
+            _framesRendered++;
+        }
+
+        return drawn;
+    }
+
+    private boolean drawFrame(Frame frame) {
+        long sequence = frame.getSequence();
+        if (sequence == _lastSequence) {
+            return false;
+        }
+
+        Surface surface = frame.getWidth() == _highResolution._width ? _highResolution : _lowResolution;
+        long dirtyRows = frame.getDirtyRows();
+
+        // Dirty rows are relative to the previous frame, so anything but the next one needs a full redraw
+        if (surface != _current || sequence != _lastSequence + 1) {
+            dirtyRows = -1L;
+        }
+
+        if (surface != _current) {
+            _current = surface;
+            _view.setImage(surface._image);
+        }
+
+        _lastSequence = sequence;
+
+        if (_postProcessor != null) {
+            dirtyRows = _postProcessor.process(frame, dirtyRows);
+        }
+
+        if (dirtyRows != 0) {
+            surface.draw(frame, dirtyRows);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.ikeras;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Animated GIF with the palette as a four-colour global table, looping forever. Each frame is the band
+// of rows that changed, LZW-compressed straight into the output a sub-block at a time. GIF delays are
+// in hundredths of a second, so frame times are rounded on the absolute clock rather than per frame,
+// which keeps the video in step however many frames it has. Players show delays under 2/100s as 1/10s,
+// so frames shorter than that are dropped in favour of the next; a game changing its picture every
+// 60Hz frame comes out at 30 to 50 frames a second.
+final class GifEncoder extends VideoEncoder {
+    private static final int MIN_CODE_SIZE = 2;
+    private static final int CLEAR_CODE = 1 << MIN_CODE_SIZE;
+    private static final int END_CODE = CLEAR_CODE + 1;
+    private static final int MAX_CODES = 4096;
+    private static final int MAX_CODE_SIZE = 12;
+    private static final int MIN_DELAY = 2;
+    private static final int MAX_DELAY = 0xffff;
+
+    private final OutputStream _output;
+    // The code for each prefix code followed by a pixel, -1 if there isn't one yet. Pixels are two bits,
+    // so the table is indexed directly instead of hashed.
+    private final int[] _codes = new int[MAX_CODES << MIN_CODE_SIZE];
+    private final byte[] _block = new byte[255];
+    private int _blockSize;
+    private int _bits;
+    private int _bitCount;
+    private int _codeSize;
+    private int _maxCode;
+    private int _nextCode;
+    private boolean _isCleared;
+
+    GifEncoder(Path path, Palette palette, int scale) throws IOException {
+        super(scale);
+        _output = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024);
+
+        _output.write(new byte[] { 'G', 'I', 'F', '8', '9', 'a' });
+        writeShort(CANVAS_WIDTH * scale);
+        writeShort(CANVAS_HEIGHT * scale);
+        // Global colour table of 2^(1 + 1) entries, 8 bits per primary
+        _output.write(0xf1);
+        _output.write(0);
+        _output.write(0);
+        for (int color : palette.getColors()) {
+            _output.write(color >>> 16);
+            _output.write(color >>> 8);
+            _output.write(color);
+        }
+
+        // NETSCAPE2.0 extension: loop forever
+        _output.write(new byte[] { 0x21, (byte)0xff, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0 });
+    }
+
+    @Override
+    boolean accepts(long start, long end) {
+        return centiseconds(end) - centiseconds(start) >= MIN_DELAY;
+    }
+
+    @Override
+    long getMaxFrames() {
+        return MAX_DELAY * Scheduler.FRAMES_PER_SECOND / 100 - 1;
+    }
+
+    @Override
+    void writeFrame(byte[] canvas, int firstRow, int lastRow, long start, long end) throws IOException {
+        int delay = (int)(centiseconds(end) - centiseconds(start));
+
+        // Graphic control extension: leave the frame in place for the next to draw over
+        _output.write(new byte[] { 0x21, (byte)0xf9, 4, 1 << 2 });
+        writeShort(delay);
+        _output.write(0);
+        _output.write(0);
+
+        // Image descriptor for the band, using the global colour table
+        _output.write(0x2c);
+        writeShort(0);
+        writeShort(firstRow * _scale);
+        writeShort(CANVAS_WIDTH * _scale);
+        writeShort((lastRow - firstRow + 1) * _scale);
+        _output.write(0);
+
+        _output.write(MIN_CODE_SIZE);
+        compress(canvas, firstRow, lastRow);
+        _output.write(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            _output.write(0x3b);
+        } finally {
+            _output.close();
+        }
+    }
+
+    // Rounded to the nearest hundredth of a second
+    private static long centiseconds(long frame) {
+        return (frame * 100 + Scheduler.FRAMES_PER_SECOND / 2) / Scheduler.FRAMES_PER_SECOND;
+    }
+
+    // Variable-length LZW as GIF specifies it: codes start one bit wider than the pixels and grow as the
+    // table fills, and a full table is cleared and started again
+    private void compress(byte[] canvas, int firstRow, int lastRow) throws IOException {
+        resetCodes();
+        _codeSize = MIN_CODE_SIZE + 1;
+        _maxCode = (1 << _codeSize) - 1;
+        _isCleared = false;
+        writeCode(CLEAR_CODE);
+
+        int prefix = -1;
+        for (int row = firstRow * _scale; row < (lastRow + 1) * _scale; row++) {
+            int offset = (row / _scale) * CANVAS_WIDTH;
+            for (int column = 0; column < CANVAS_WIDTH; column++) {
+                int pixel = canvas[offset + column];
+                for (int repeat = 0; repeat < _scale; repeat++) {
+                    if (prefix < 0) {
+                        prefix = pixel;
+                        continue;
+                    }
+
+                    int key = prefix << MIN_CODE_SIZE | pixel;
+                    int code = _codes[key];
+                    if (code >= 0) {
+                        prefix = code;
+                        continue;
+                    }
+
+                    writeCode(prefix);
+                    prefix = pixel;
+
+                    if (_nextCode < MAX_CODES) {
+                        _codes[key] = _nextCode++;
+                    } else {
+                        resetCodes();
+                        _isCleared = true;
+                        writeCode(CLEAR_CODE);
+                    }
+                }
+            }
+        }
+
+        writeCode(prefix);
+        writeCode(END_CODE);
+
+        if (_bitCount > 0) {
+            writeByte(_bits);
+            _bits = 0;
+            _bitCount = 0;
+        }
+
+        flushBlock();
+    }
+
+    private void resetCodes() {
+        Arrays.fill(_codes, -1);
+        _nextCode = END_CODE + 1;
+    }
+
+    // Written at the current width, which grows once the table holds a code that no longer fits it.
+    // The decoder adds its entries a code behind the encoder, so the check comes after the write.
+    private void writeCode(int code) throws IOException {
+        _bits |= code << _bitCount;
+        _bitCount += _codeSize;
+        while (_bitCount >= 8) {
+            writeByte(_bits);
+            _bits >>>= 8;
+            _bitCount -= 8;
+        }
+
+        if (_isCleared) {
+            _codeSize = MIN_CODE_SIZE + 1;
+            _maxCode = (1 << _codeSize) - 1;
+            _isCleared = false;
+        } else if (_nextCode > _maxCode && _codeSize < MAX_CODE_SIZE) {
+            _codeSize++;
+            _maxCode = _codeSize == MAX_CODE_SIZE ? MAX_CODES : (1 << _codeSize) - 1;
+        }
+    }
+
+    // Image data goes out in sub-blocks of up to 255 bytes, each preceded by its length
+    private void writeByte(int value) throws IOException {
+        _block[_blockSize++] = (byte)value;
+        if (_blockSize == _block.length) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (_blockSize > 0) {
+            _output.write(_blockSize);
+            _output.write(_block, 0, _blockSize);
+            _blockSize = 0;
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        _output.write(value);
+        _output.write(value >>> 8);
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.ikeras;
+
+final class Hashing {
+    private Hashing() {
+    }
+
+    // 64-bit FNV-1a, stable across runs and JVMs unlike Arrays.hashCode
+    static long fnv1a(byte[] bytes) {
+        return fnv1a(bytes, 0, bytes.length);
+    }
+
+    static long fnv1a(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+}
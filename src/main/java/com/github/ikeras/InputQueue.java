@@ -0,0 +1,64 @@
+package com.github.ikeras;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer, single-consumer queue of key events from the UI thread to the emulation thread,
+// which drains it at the start of each frame. Each event is one long in a preallocated ring: the time
+// it was queued (nanoseconds since the queue was created) above the pressed flag and the key, so
+// queueing never allocates. The two sides only share the ring's counters, published with
+// release/acquire ordering as in AudioRing. A full queue drops the event; at CAPACITY events within
+// one frame there is no keyboard that gets there.
+final class InputQueue {
+    static final int CAPACITY = 64;
+    static final long EMPTY = -1;
+    private static final int MASK = CAPACITY - 1;
+    private static final int PRESSED = 0x10;
+    private static final int TIME_SHIFT = 5;
+
+    private final long[] _events = new long[CAPACITY];
+    private final long _epoch = System.nanoTime();
+    // Events queued and taken since the start; only the producer sets _written, only the consumer _read
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _read = new AtomicLong();
+
+    // Producer side. Returns false if the queue is full.
+    boolean offer(int key, boolean pressed) {
+        long written = _written.getPlain();
+        if (written - _read.getAcquire() == CAPACITY) {
+            return false;
+        }
+
+        _events[(int)written & MASK] = now() << TIME_SHIFT | (pressed ? PRESSED : 0) | key;
+        _written.setRelease(written + 1);
+        return true;
+    }
+
+    // Consumer side. Returns EMPTY when there is nothing queued.
+    long poll() {
+        long read = _read.getPlain();
+        if (read == _written.getAcquire()) {
+            return EMPTY;
+        }
+
+        long event = _events[(int)read & MASK];
+        _read.setRelease(read + 1);
+        return event;
+    }
+
+    // On the same clock as getTime
+    long now() {
+        return System.nanoTime() - _epoch;
+    }
+
+    static int getKey(long event) {
+        return (int)event & 0x0f;
+    }
+
+    static boolean isPressed(long event) {
+        return (event & PRESSED) != 0;
+    }
+
+    static long getTime(long event) {
+        return event >>> TIME_SHIFT;
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.ikeras;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Writes a replayable log of a session: the RNG seed, speed, ROM hash and quirk profile, then key events and
+// periodic state digests stamped with the frame they happened at. Frames are stored as varint
+// deltas from the previous entry, so most entries are three bytes. Only used on the emulation thread.
+final class InputRecorder implements AutoCloseable {
+    static final int MAGIC = 0x55545a52; // "UTZR"
+    // Version 1 logs have no quirk profile and were all recorded as CHIP8
+    static final short VERSION = 2;
+
+    static final int KEY_DOWN = 0;
+    static final int KEY_UP = 1;
+    static final int CHECKPOINT = 2;
+    static final int END = 3;
+
+    // Frames between state digests, so a replay can say roughly where it diverged
+    static final int CHECKPOINT_INTERVAL = 60;
+
+    private final DataOutputStream _output;
+    private long _lastFrame;
+
+    InputRecorder(Path path, long seed, int instructionsPerSecond, long romHash, QuirkProfile quirks) throws IOException {
+        _output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        _output.writeInt(MAGIC);
+        _output.writeShort(VERSION);
+        _output.writeLong(seed);
+        _output.writeInt(instructionsPerSecond);
+        _output.writeLong(romHash);
+        _output.writeUTF(quirks.name());
+    }
+
+    void keyEvent(long frame, int key, boolean pressed) {
+        writeEntry(pressed ? KEY_DOWN : KEY_UP, frame);
+        write(key);
+    }
+
+    void checkpoint(long frame, long digest) {
+        writeEntry(CHECKPOINT, frame);
+        writeLong(digest);
+    }
+
+    void end(long frame, long digest) throws IOException {
+        writeEntry(END, frame);
+        writeLong(digest);
+        _output.flush();
+    }
+
+    public void close() throws IOException {
+        _output.close();
+    }
+
+    private void writeEntry(int type, long frame) {
+        write(type);
+
+        long delta = frame - _lastFrame;
+        _lastFrame = frame;
+        while (delta >= 0x80) {
+            write((int)(delta | 0x80) & 0xff);
+            delta >>>= 7;
+        }
+
+        write((int)delta);
+    }
+
+    // The emulation thread can't do anything useful with an I/O error mid-frame, so rethrow unchecked
+    private void write(int value) {
+        try {
+            _output.write(value);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write input recording", e);
+        }
+    }
+
+    private void writeLong(long value) {
+        try {
+            _output.writeLong(value);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write input recording", e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.ikeras;
+
+// CHIP-8 for ROMs that leave subroutines by jumping instead of returning, so their calls nest deeper
+// and deeper without ever coming back. A call past STACK_SLOTS deep overwrites the oldest return
+// address, which such a ROM never returns to, instead of failing.
+final class LenientCPU extends CPU {
+    LenientCPU(byte[] memory) {
+        super(memory);
+    }
+
+    @Override
+    void opCall(int opcode) {
+        if (isStackFull()) {
+            dropOldestReturn();
+        }
+
+        super.opCall(opcode);
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.ikeras;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.*;
+
+// Lists the ROM library, first bringing the index up to date for any directories given. With no
+// directories it only reads the index, which stays fast however large the collection gets.
+public class Library {
+    private final class LibraryOptions {
+        private final List<Path> _directories;
+        private final Path _index;
+        private final int _threads;
+        private final Platform _platform;
+        private final boolean _quiet;
+
+        public LibraryOptions(List<Path> directories, Path index, int threads, Platform platform, boolean quiet) {
+            _directories = directories;
+            _index = index;
+            _threads = threads;
+            _platform = platform;
+            _quiet = quiet;
+        }
+
+        public List<Path> getDirectories() {
+            return _directories;
+        }
+
+        public Path getIndex() {
+            return _index;
+        }
+
+        public int getThreads() {
+            return _threads;
+        }
+
+        public Platform getPlatform() {
+            return _platform;
+        }
+
+        public boolean isQuiet() {
+            return _quiet;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraryOptions options = new Library().parseArgs(args);
+        long startTime = System.nanoTime();
+
+        RomLibrary library = new RomLibrary(options.getIndex());
+        if (!options.getDirectories().isEmpty()) {
+            library.update(options.getDirectories(), options.getThreads());
+            library.save();
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        int listed = 0;
+
+        for (RomLibrary.Entry entry : library.getEntries()) {
+            if (options.getPlatform() == null || entry.getPlatform() == options.getPlatform()) {
+                listed++;
+                if (!options.isQuiet()) {
+                    System.out.printf("%-5s %6d  %016x  %s%n", entry.getPlatform(), entry.getSize(), entry.getHash(), entry.getPath());
+                }
+            }
+        }
+
+        System.out.printf("%d ROMs listed, %d indexed, %d unchanged, %d failed, %d dropped in %.0fms%n",
+            listed, library.getIndexed(), library.getReused(), library.getFailed(), library.getDropped(), elapsed / 1e6);
+    }
+
+    private LibraryOptions parseArgs(String[] args) {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("i", "index", true, "Index file (default library.txt)");
+        options.addOption("t", "threads", true, "Number of threads indexing ROMs (default: all available processors)");
+        options.addOption("p", "platform", true, "Only list ROMs for this platform (CHIP8, SCHIP or XOCHIP)");
+        options.addOption("q", "quiet", false, "Only print the summary");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            Path index = Paths.get("library.txt");
+            int threads = Runtime.getRuntime().availableProcessors();
+            Platform platform = null;
+            List<Path> directories = new ArrayList<>();
+
+            if (cmd.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("Library [options] [directory to scan]...", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("index")) {
+                index = Paths.get(cmd.getOptionValue("index"));
+            }
+
+            if (cmd.hasOption("threads")) {
+                threads = Integer.parseInt(cmd.getOptionValue("threads").trim());
+            }
+
+            if (cmd.hasOption("platform")) {
+                platform = Platform.valueOf(cmd.getOptionValue("platform").trim().toUpperCase());
+            }
+
+            for (String directory : cmd.getArgs()) {
+                directories.add(Paths.get(directory));
+            }
+
+            return new LibraryOptions(directories, index, threads, platform, cmd.hasOption("quiet"));
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+// Plays the emulator's sound on the default output device. The emulation thread only copies each frame
+// into a ring; a daemon thread drains the ring into a SourceDataLine a small chunk at a time, and the
+// blocking line write is what paces it. The line buffer holds a few frames, and anything queued beyond
+// MAX_BACKLOG samples (after a stall, or in turbo) is thrown away rather than played late, so the
+// sound stays within a few frames of the picture.
+final class LineSink implements AudioSink {
+    private static final int RING_SAMPLES = 4096;
+    private static final int LINE_BUFFER_SAMPLES = AudioGenerator.SAMPLES_PER_FRAME * 3;
+    private static final int CHUNK_SAMPLES = 256;
+    private static final int MAX_BACKLOG = AudioGenerator.SAMPLES_PER_FRAME * 3;
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private final AudioRing _ring = new AudioRing(RING_SAMPLES);
+    private final SourceDataLine _line;
+    private final Thread _thread;
+    private volatile boolean _isRunning = true;
+
+    LineSink() throws LineUnavailableException {
+        _line = AudioSystem.getSourceDataLine(AudioGenerator.FORMAT);
+        _line.open(AudioGenerator.FORMAT, LINE_BUFFER_SAMPLES);
+        _line.start();
+
+        _thread = new Thread(this::drain, "audio");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    @Override
+    public void write(byte[] samples, int count) {
+        _ring.write(samples, 0, count);
+    }
+
+    private void drain() {
+        byte[] chunk = new byte[CHUNK_SAMPLES];
+
+        while (_isRunning) {
+            int backlog = _ring.available();
+            if (backlog > MAX_BACKLOG) {
+                _ring.skip(backlog - MAX_BACKLOG);
+            }
+
+            int count = _ring.read(chunk, 0, chunk.length);
+            if (count == 0) {
+                // The line plays out what it holds; an underrun is just a moment of silence
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            _line.write(chunk, 0, count);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _isRunning = false;
+
+        // The line stays open if the thread can't be waited for, as it may still be writing to it
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the audio thread", e);
+        }
+
+        _line.stop();
+        _line.close();
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.ikeras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Simulated players for SessionHost --clients: a single thread connects the given number of
+// loopback clients, decodes every frame they receive into a SessionProtocol.Display, and every half
+// second or so has each one let go of its key and press another at random, so ROMs waiting on input
+// keep moving.
+final class LoadClients implements Runnable {
+    private static final long KEY_INTERVAL_NANOS = 500_000_000L;
+
+    private static final class Client {
+        private final SocketChannel _channel;
+        private final ByteBuffer _input = ByteBuffer.allocate(8 * 1024);
+        private final ByteBuffer _key = ByteBuffer.allocate(2);
+        private final SessionProtocol.Display _display = new SessionProtocol.Display();
+        private long _nextKeyTime;
+        private int _heldKey = -1;
+
+        Client(SocketChannel channel, long nextKeyTime) {
+            _channel = channel;
+            _nextKeyTime = nextKeyTime;
+        }
+    }
+
+    private final Selector _selector;
+    private final List<Client> _clients = new ArrayList<>();
+    private final SplittableRandom _random;
+    private volatile boolean _isRunning = true;
+    private volatile long _framesReceived;
+    private volatile long _bytesReceived;
+
+    LoadClients(int port, List<String> romNames, int count, long seed) throws IOException {
+        _selector = Selector.open();
+        _random = new SplittableRandom(seed);
+
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+            ByteArrayOutputStream hello = new ByteArrayOutputStream();
+            new DataOutputStream(hello).writeUTF(romNames.get(i % romNames.size()));
+            channel.write(ByteBuffer.wrap(hello.toByteArray()));
+
+            channel.configureBlocking(false);
+            Client client = new Client(channel, now + _random.nextLong(KEY_INTERVAL_NANOS));
+            channel.register(_selector, SelectionKey.OP_READ, client);
+            _clients.add(client);
+        }
+    }
+
+    public void run() {
+        try {
+            while (_isRunning) {
+                _selector.select(10);
+
+                for (SelectionKey key : _selector.selectedKeys()) {
+                    receive((Client)key.attachment());
+                }
+
+                _selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                for (Client client : _clients) {
+                    if (now >= client._nextKeyTime) {
+                        pressRandomKey(client);
+                        client._nextKeyTime = now + KEY_INTERVAL_NANOS;
+                    }
+                }
+            }
+
+            for (Client client : _clients) {
+                client._channel.close();
+            }
+
+            _selector.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Load client failed", e);
+        }
+    }
+
+    void stop() {
+        _isRunning = false;
+    }
+
+    int getClientCount() {
+        return _clients.size();
+    }
+
+    long getFramesReceived() {
+        return _framesReceived;
+    }
+
+    long getBytesReceived() {
+        return _bytesReceived;
+    }
+
+    private void receive(Client client) throws IOException {
+        int read = client._channel.read(client._input);
+        if (read < 0) {
+            client._channel.close();
+            return;
+        }
+
+        _bytesReceived += read;
+
+        ByteBuffer input = client._input;
+        input.flip();
+        while (input.remaining() >= 2 && input.remaining() >= 2 + (input.getShort(input.position()) & 0xffff)) {
+            int length = input.getShort() & 0xffff;
+            int end = input.position() + length;
+
+            client._display.apply(input);
+            if (input.position() != end) {
+                throw new IllegalStateException("Malformed frame: " + length + " byte payload decoded as " + (input.position() - end + length));
+            }
+
+            _framesReceived++;
+        }
+
+        input.compact();
+    }
+
+    private void pressRandomKey(Client client) throws IOException {
+        if (!client._channel.isOpen()) {
+            return;
+        }
+
+        client._key.clear();
+        if (client._heldKey >= 0) {
+            client._key.put((byte)client._heldKey);
+        }
+
+        client._heldKey = _random.nextInt(16);
+        client._key.put((byte)(SessionProtocol.KEY_PRESSED | client._heldKey));
+        client._key.flip();
+
+        // Two bytes fit in any socket buffer that isn't completely wedged; if it is, drop the event
+        client._channel.write(client._key);
+    }
+}
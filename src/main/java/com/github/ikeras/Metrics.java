@@ -0,0 +1,169 @@
+package com.github.ikeras;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Read side of the emulator's instrumentation. The counters themselves live with the thread that
+// updates them (operation and sprite counters in the CPU on the emulation thread, render times in
+// FrameRenderer on the FX thread) as plain fields, and each thread ends a frame with a volatile
+// write that this class reads first, so the values seen here are at most a frame stale.
+//
+// Counting is compiled in only when ENABLED, which is a static final so the JIT drops the disabled
+// branches entirely; turn it on with -Dutz.metrics=true.
+final class Metrics implements EmulatorMetricsMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("utz.metrics");
+
+    // Upper bounds of the render time histogram buckets, the last one catching everything slower
+    static final long[] RENDER_BUCKET_NANOS = new long[] {
+        25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000, 16_666_667, Long.MAX_VALUE
+    };
+
+    // The same for the time from a key event being queued to the first shown frame it applies to
+    static final long[] KEY_LATENCY_BUCKET_NANOS = new long[] {
+        1_000_000, 2_000_000, 4_000_000, 8_000_000, 16_666_667, 33_333_333, 50_000_000, 100_000_000, Long.MAX_VALUE
+    };
+
+    private final Emulator _emulator;
+    private final FrameRenderer _renderer;
+
+    Metrics(Emulator emulator, FrameRenderer renderer) {
+        _emulator = emulator;
+        _renderer = renderer;
+    }
+
+    static int renderBucket(long nanos) {
+        return bucket(RENDER_BUCKET_NANOS, nanos);
+    }
+
+    static int bucket(long[] bounds, long nanos) {
+        int bucket = 0;
+        while (nanos > bounds[bucket]) {
+            bucket++;
+        }
+
+        return bucket;
+    }
+
+    void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.github.ikeras:type=Emulator"));
+    }
+
+    // Prints a one line summary every interval on a daemon thread
+    void startLogging(int intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "utz-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleAtFixedRate(() -> System.out.println(getSummary()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    String getSummary() {
+        long drawSpriteCalls = getDrawSpriteCalls();
+        long framesRendered = getFramesRendered();
+        long keyEvents = getKeyEvents();
+        return String.format("%.0f ips, %d instructions, %d late and %d dropped ticks, %d sprites at %.0fns, %d frames rendered with p50 <= %s and p99 <= %s, %d keys shown with p50 <= %s and p99 <= %s",
+            getInstructionsPerSecond(), getInstructions(), getLateTicks(), getDroppedTicks(),
+            drawSpriteCalls, drawSpriteCalls == 0 ? 0 : getDrawSpriteNanos() / (double)drawSpriteCalls,
+            framesRendered, percentile(RENDER_BUCKET_NANOS, _renderer.getRenderHistogram(), framesRendered, 0.5),
+            percentile(RENDER_BUCKET_NANOS, _renderer.getRenderHistogram(), framesRendered, 0.99),
+            keyEvents, percentile(KEY_LATENCY_BUCKET_NANOS, _emulator.getKeyLatencyHistogram(), keyEvents, 0.5),
+            percentile(KEY_LATENCY_BUCKET_NANOS, _emulator.getKeyLatencyHistogram(), keyEvents, 0.99));
+    }
+
+    public double getInstructionsPerSecond() {
+        return _emulator.getAchievedInstructionsPerSecond();
+    }
+
+    public long getInstructions() {
+        _emulator.getMetricsFrame();
+        long total = 0;
+        for (long count : _emulator.getOperationCounts()) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    public Map<String, Long> getOperationCounts() {
+        _emulator.getMetricsFrame();
+        long[] counts = _emulator.getOperationCounts();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int operation = 1; operation < counts.length; operation++) {
+            result.put(CPU.OPERATION_METHODS[operation].substring(2), counts[operation]);
+        }
+
+        return result;
+    }
+
+    public long getLateTicks() {
+        return _emulator.getLateFrames();
+    }
+
+    public long getDroppedTicks() {
+        return _emulator.getDroppedFrames();
+    }
+
+    public long getDrawSpriteCalls() {
+        _emulator.getMetricsFrame();
+        return _emulator.getDrawSpriteCalls();
+    }
+
+    public long getDrawSpriteNanos() {
+        _emulator.getMetricsFrame();
+        return _emulator.getDrawSpriteNanos();
+    }
+
+    public long getFramesRendered() {
+        return _renderer.getFramesRendered();
+    }
+
+    public Map<String, Long> getFrameRenderTimes() {
+        _renderer.getFramesRendered();
+        return histogram(RENDER_BUCKET_NANOS, _renderer.getRenderHistogram());
+    }
+
+    public long getKeyEvents() {
+        _emulator.getMetricsFrame();
+        return _emulator.getKeyEvents();
+    }
+
+    public Map<String, Long> getKeyLatencies() {
+        _emulator.getMetricsFrame();
+        return histogram(KEY_LATENCY_BUCKET_NANOS, _emulator.getKeyLatencyHistogram());
+    }
+
+    private static Map<String, Long> histogram(long[] bounds, long[] histogram) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            result.put(bucketLabel(bounds, bucket), histogram[bucket]);
+        }
+
+        return result;
+    }
+
+    private static String percentile(long[] bounds, long[] histogram, long total, double percentile) {
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen > 0 && seen >= total * percentile) {
+                return bucketLabel(bounds, bucket);
+            }
+        }
+
+        return "n/a";
+    }
+
+    private static String bucketLabel(long[] bounds, int bucket) {
+        long nanos = bounds[bucket];
+        return nanos == Long.MAX_VALUE ? "slower" : String.format("%dus", nanos / 1000);
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.ikeras;
+
+// Colours for the four pixel values, as premultiplied ARGB: off, first plane only, second plane only
+// and both planes. Plain CHIP-8 and SCHIP only use the first two.
+enum Palette {
+    CLASSIC(0xFF000000, 0xFFFFFFFF, 0xFFAAAAAA, 0xFF555555),
+    AMBER(0xFF140C00, 0xFFFFB000, 0xFFB87A00, 0xFF6A4400),
+    GREEN(0xFF001205, 0xFF33FF66, 0xFF22B048, 0xFF13652A),
+    // The four greens of an early handheld LCD, lightest for off
+    LCD(0xFF9BBC0F, 0xFF0F380F, 0xFF306230, 0xFF8BAC0F);
+
+    private final int[] _colors;
+
+    Palette(int off, int first, int second, int both) {
+        _colors = new int[] { off, first, second, both };
+    }
+
+    // By pixel value; callers must not modify it
+    int[] getColors() {
+        return _colors;
+    }
+
+    static Palette parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown palette " + name + ", expected one of CLASSIC, AMBER, GREEN or LCD");
+        }
+    }
+}
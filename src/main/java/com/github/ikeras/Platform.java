@@ -0,0 +1,92 @@
+package com.github.ikeras;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// The machine a ROM was written for, as far as can be told from its code
+enum Platform {
+    CHIP8,
+    SCHIP,
+    XOCHIP;
+
+    private static final int LOAD_ADDRESS = 0x200;
+
+    // Follows the code reachable from the entry point, both ways at every skip and into every call,
+    // and looks for SCHIP and XO-CHIP instructions. XO-CHIP ROMs use SCHIP's too, so only an XO-CHIP
+    // instruction ends the walk early. Only walking code keeps sprites and other data that happen to
+    // look like 00FF or Fx75 from counting. Jumps through V0 can't be followed, so code only reached
+    // that way is missed.
+    static Platform detect(byte[] rom) {
+        boolean[] visited = new boolean[rom.length];
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(0);
+        boolean schip = false;
+
+        while (!pending.isEmpty()) {
+            int offset = pending.pop();
+
+            while (offset >= 0 && offset + 1 < rom.length && !visited[offset]) {
+                visited[offset] = true;
+                int opcode = (rom[offset] & 0xff) << 8 | (rom[offset + 1] & 0xff);
+                int target = (opcode & 0xfff) - LOAD_ADDRESS;
+
+                // 5xy2, 5xy3 and 00Dn decode as other instructions outside XO-CHIP
+                if ((opcode & 0xf00e) == 0x5002 || (opcode & 0xfff0) == 0x00d0) {
+                    return XOCHIP;
+                }
+
+                switch (CPU.decodeOpcode(opcode) >>> 16) {
+                    case CPU.OP_SCROLL_DOWN:
+                    case CPU.OP_SCROLL_RIGHT:
+                    case CPU.OP_SCROLL_LEFT:
+                    case CPU.OP_LOW_RES:
+                    case CPU.OP_HIGH_RES:
+                    case CPU.OP_LD_HF:
+                    case CPU.OP_LD_R_VX:
+                    case CPU.OP_LD_VX_R:
+                        schip = true;
+                        offset += 2;
+                        break;
+                    case CPU.OP_LD_I_LONG:
+                    case CPU.OP_PLANE:
+                    case CPU.OP_LD_AUDIO:
+                    case CPU.OP_LD_PITCH:
+                        return XOCHIP;
+                    case CPU.OP_JP:
+                        offset = target;
+                        break;
+                    case CPU.OP_CALL:
+                        pending.push(target);
+                        offset += 2;
+                        break;
+                    case CPU.OP_SE_IMMEDIATE:
+                    case CPU.OP_SNE_IMMEDIATE:
+                    case CPU.OP_SE_REGISTER:
+                    case CPU.OP_SNE_REGISTER:
+                    case CPU.OP_SKP:
+                    case CPU.OP_SKNP:
+                        pending.push(offset + 4);
+                        offset += 2;
+                        break;
+                    case CPU.OP_RET:
+                    case CPU.OP_JP_V0:
+                    case CPU.OP_UNKNOWN:
+                        offset = -1;
+                        break;
+                    default:
+                        // 00FD, exit, is SCHIP only but decodes as SYS, and nothing runs after it
+                        if (opcode == 0x00fd) {
+                            schip = true;
+                            offset = -1;
+                        } else {
+                            offset += 2;
+                        }
+
+                        break;
+                }
+            }
+        }
+
+        return schip ? SCHIP : CHIP8;
+    }
+}
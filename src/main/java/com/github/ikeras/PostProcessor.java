@@ -0,0 +1,184 @@
+package com.github.ikeras;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Optional stage between a published frame and the screen. It maps pixels through a palette and
+// averages each pixel's colour over the last `persistence` frames. That smooths out the flicker of
+// sprites that are erased and redrawn with XOR every frame, much as a slow phosphor did. It then
+// scales the result up by a whole number into the caller's buffer. All state is preallocated for the
+// largest display.
+//
+// The blend kernels are short loops over int arrays with no branches or calls, one pass per channel,
+// which C2 compiles to SIMD instructions; fused into one loop they don't vectorize and run several
+// times slower. The Vector API is still an incubator module in Java 17, and these loops don't need
+// it. Scaling widens a row through a table of source columns and then bulk-copies it down. A row is
+// only reworked if it changed in any of the frames it is averaged over; the rest of the picture is
+// already exact.
+final class PostProcessor {
+    static final int MAX_PERSISTENCE = 8;
+    private static final int MAX_PIXELS = 128 * 64;
+
+    private final int[] _palette;
+    private final int _persistence;
+    private final int _outputWidth;
+    // 16-bit fixed point 1 / persistence, rounded up so a full sum comes back as 255
+    private final int _reciprocal;
+
+    // The newest frame in colour; rows are only unpacked when dirty
+    private final int[] _current = new int[MAX_PIXELS];
+    // The last `persistence` frames, oldest at _slot, and per channel sums over them
+    private final int[][] _history;
+    private final int[] _sumRed = new int[MAX_PIXELS];
+    private final int[] _sumGreen = new int[MAX_PIXELS];
+    private final int[] _sumBlue = new int[MAX_PIXELS];
+    // Rows that changed in each of those frames
+    private final long[] _dirtyHistory;
+    private int _slot;
+    private final int[] _blended = new int[MAX_PIXELS];
+    private final int[] _scaledRow;
+    // The source column of each output column
+    private final int[] _columns;
+    private int _width;
+    private int _height;
+    private int _scale;
+
+    // Frames are scaled up by the largest whole number that keeps them within outputWidth
+    PostProcessor(Palette palette, int persistence, int outputWidth) {
+        if (persistence < 1 || persistence > MAX_PERSISTENCE) {
+            throw new IllegalArgumentException("Persistence must be between 1 and " + MAX_PERSISTENCE + " frames, not " + persistence);
+        }
+
+        _palette = palette.getColors();
+        _persistence = persistence;
+        _outputWidth = outputWidth;
+        _reciprocal = (65536 + persistence - 1) / persistence;
+        _history = new int[persistence][MAX_PIXELS];
+        _dirtyHistory = new long[persistence];
+        _scaledRow = new int[outputWidth];
+        _columns = new int[outputWidth];
+    }
+
+    int getScale() {
+        return _scale;
+    }
+
+    // Takes in the next frame and returns the rows of the output that changed. dirtyRows is relative
+    // to the previous frame given, so pass -1 after skipping any.
+    long process(Frame frame, long dirtyRows) {
+        if (frame.getWidth() != _width || frame.getHeight() != _height) {
+            // A resolution switch starts the history afresh, as if this frame had always been shown
+            _width = frame.getWidth();
+            _height = frame.getHeight();
+            _scale = Math.max(1, _outputWidth / _width);
+            for (int column = 0; column < _width * _scale; column++) {
+                _columns[column] = column / _scale;
+            }
+
+            unpack(frame, -1L);
+            reset();
+            return -1L;
+        }
+
+        unpack(frame, dirtyRows);
+
+        // The oldest slot is about to be replaced, so its rows fall out of the average
+        long rows = dirtyRows;
+        for (int i = 0; i < _persistence; i++) {
+            if (i != _slot) {
+                rows |= _dirtyHistory[i];
+            }
+        }
+
+        int[] oldest = _history[_slot];
+        for (int y = 0; y < _height; y++) {
+            if ((rows & (1L << y)) != 0) {
+                blend(_current, oldest, _sumRed, _sumGreen, _sumBlue, _blended, y * _width, (y + 1) * _width, _reciprocal);
+            }
+        }
+
+        _dirtyHistory[_slot] = dirtyRows;
+        _slot = (_slot + 1) % _persistence;
+        return rows;
+    }
+
+    // Writes the given rows, scaled up, to a buffer of width * getScale() by height * getScale()
+    void write(IntBuffer pixels, long rows) {
+        int scaledWidth = _width * _scale;
+        for (int y = 0; y < _height; y++) {
+            if ((rows & (1L << y)) == 0) {
+                continue;
+            }
+
+            scaleRow(_blended, y * _width, _columns, _scaledRow, scaledWidth);
+            for (int copy = 0; copy < _scale; copy++) {
+                pixels.put((y * _scale + copy) * scaledWidth, _scaledRow, 0, scaledWidth);
+            }
+        }
+    }
+
+    private void unpack(Frame frame, long dirtyRows) {
+        int wordsPerRow = frame.getWordsPerRow();
+        for (int y = 0; y < _height; y++) {
+            if ((dirtyRows & (1L << y)) == 0) {
+                continue;
+            }
+
+            for (int word = 0, pixel = y * _width; word < wordsPerRow; word++) {
+                long bits = frame.getWord(0, y * wordsPerRow + word);
+                long highBits = frame.getWord(1, y * wordsPerRow + word);
+                for (int shift = 63; shift >= 0; shift--) {
+                    _current[pixel++] = _palette[(int)((bits >>> shift) & 1 | ((highBits >>> shift) & 1) << 1)];
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        int pixels = _width * _height;
+        for (int[] frame : _history) {
+            System.arraycopy(_current, 0, frame, 0, pixels);
+        }
+
+        for (int i = 0; i < pixels; i++) {
+            int color = _current[i];
+            _sumRed[i] = ((color >>> 16) & 0xff) * _persistence;
+            _sumGreen[i] = ((color >>> 8) & 0xff) * _persistence;
+            _sumBlue[i] = (color & 0xff) * _persistence;
+        }
+
+        System.arraycopy(_current, 0, _blended, 0, pixels);
+        Arrays.fill(_dirtyHistory, 0L);
+        _slot = 0;
+    }
+
+    // Replaces the oldest frame with the current one in each channel's running sum and writes the
+    // average. oldest is overwritten with current, becoming the newest frame.
+    static void blend(int[] current, int[] oldest, int[] sumRed, int[] sumGreen, int[] sumBlue, int[] blended, int from, int to, int reciprocal) {
+        accumulate(current, oldest, sumRed, 16, from, to);
+        accumulate(current, oldest, sumGreen, 8, from, to);
+        accumulate(current, oldest, sumBlue, 0, from, to);
+        average(sumRed, sumGreen, sumBlue, blended, reciprocal, from, to);
+        System.arraycopy(current, from, oldest, from, to - from);
+    }
+
+    private static void accumulate(int[] current, int[] oldest, int[] sum, int shift, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sum[i] += ((current[i] >>> shift) & 0xff) - ((oldest[i] >>> shift) & 0xff);
+        }
+    }
+
+    private static void average(int[] sumRed, int[] sumGreen, int[] sumBlue, int[] blended, int reciprocal, int from, int to) {
+        for (int i = from; i < to; i++) {
+            blended[i] = 0xff000000 | ((sumRed[i] * reciprocal) >>> 16) << 16 | ((sumGreen[i] * reciprocal) >>> 16) << 8 | (sumBlue[i] * reciprocal) >>> 16;
+        }
+    }
+
+    // Fills count pixels of target from the row of source starting at offset, each from the column
+    // the table gives
+    static void scaleRow(int[] source, int offset, int[] columns, int[] target, int count) {
+        for (int pixel = 0; pixel < count; pixel++) {
+            target[pixel] = source[offset + columns[pixel]];
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.ikeras;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Sampling profiler for the ROM being emulated. The interpreter runs sampleInterval instructions at a
+// time between samples, and each sample records the pc in a flat histogram and against a node of a
+// call tree. The node is found by walking the CPU's call stack, at most STACK_SLOTS return addresses,
+// from the root, so instructions between samples cost nothing.
+//
+// The tree lives in preallocated arrays indexed by node, each node's children chained through
+// _nextSibling, and a node's counts are a long per address, in pages allocated the first time one of
+// their addresses is sampled, so sampling neither boxes nor allocates.
+//
+// Output is a pc histogram and collapsed stacks (one "frame;frame;leaf count" line per distinct
+// stack, as read by flamegraph.pl and speedscope), both labelled with disassembled instructions.
+// Only used on the emulation thread.
+final class Profiler {
+    // Prime, so samples don't alias with loops of a power-of-two length
+    static final int DEFAULT_SAMPLE_INTERVAL = 61;
+    // Samples in calls that would need more nodes than the tree has go to the deepest node it holds
+    private static final int MAX_NODES = 1024;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    private final int _sampleInterval;
+    private final long[] _pcSamples;
+    private final int _pagesPerNode;
+    private final int[] _functions = new int[MAX_NODES];
+    private final int[] _firstChild = new int[MAX_NODES];
+    private final int[] _nextSibling = new int[MAX_NODES];
+    // Node n's counts for the addresses in page p are at _samples[n * _pagesPerNode + p]
+    private final long[][] _samples;
+    private int _nodes = 1;
+    private int _countdown;
+    private long _totalSamples;
+
+    Profiler(int memorySize, int sampleInterval) {
+        _pcSamples = new long[memorySize];
+        _pagesPerNode = (memorySize + PAGE_MASK) >>> PAGE_BITS;
+        _samples = new long[MAX_NODES * _pagesPerNode][];
+        _sampleInterval = sampleInterval;
+        _countdown = sampleInterval;
+
+        _functions[ROOT] = NONE;
+        _firstChild[ROOT] = NONE;
+        _nextSibling[ROOT] = NONE;
+    }
+
+    // The most instructions to run before calling afterInstructions
+    int getCountdown() {
+        return _countdown;
+    }
+
+    // Called with the number of instructions just run, samples the CPU once the interval is up
+    void afterInstructions(int count, CPU cpu) {
+        _countdown -= count;
+        if (_countdown == 0) {
+            _countdown = _sampleInterval;
+            sample(cpu);
+        }
+    }
+
+    long getTotalSamples() {
+        return _totalSamples;
+    }
+
+    void write(Path histogramPath, Path collapsedPath, CPU cpu) throws IOException {
+        writeHistogram(histogramPath, cpu);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(collapsedPath)) {
+            writeCollapsed(writer, ROOT, "rom", cpu);
+        }
+    }
+
+    private void sample(CPU cpu) {
+        int pc = cpu.getPc();
+        _pcSamples[pc]++;
+        _totalSamples++;
+
+        int node = ROOT;
+        for (int depth = 0; depth < cpu.getStackDepth(); depth++) {
+            int child = getChild(node, getFunction(cpu, cpu.getStackEntry(depth)));
+            if (child == NONE) {
+                break;
+            }
+
+            node = child;
+        }
+
+        int page = node * _pagesPerNode + (pc >>> PAGE_BITS);
+        long[] counts = _samples[page];
+        if (counts == null) {
+            counts = new long[1 << PAGE_BITS];
+            _samples[page] = counts;
+        }
+
+        counts[pc & PAGE_MASK]++;
+    }
+
+    // The subroutine a return address goes back from: the target of the 2nnn just before it, or the
+    // address of that instruction if it has been overwritten since
+    private int getFunction(CPU cpu, int returnAddress) {
+        int call = (returnAddress - 2) & (_pcSamples.length - 1);
+        int decoded = cpu.getDecodedInstruction(call);
+        return decoded >>> 16 == CPU.OP_CALL ? decoded & 0xfff : call;
+    }
+
+    // NONE once the tree is full
+    private int getChild(int node, int function) {
+        int child = _firstChild[node];
+        while (child != NONE && _functions[child] != function) {
+            child = _nextSibling[child];
+        }
+
+        if (child == NONE && _nodes < MAX_NODES) {
+            child = _nodes++;
+            _functions[child] = function;
+            _firstChild[child] = NONE;
+            _nextSibling[child] = _firstChild[node];
+            _firstChild[node] = child;
+        }
+
+        return child;
+    }
+
+    private void writeHistogram(Path path, CPU cpu) throws IOException {
+        List<Integer> addresses = new ArrayList<>();
+        for (int pc = 0; pc < _pcSamples.length; pc++) {
+            if (_pcSamples[pc] > 0) {
+                addresses.add(pc);
+            }
+        }
+
+        addresses.sort((a, b) -> Long.compare(_pcSamples[b], _pcSamples[a]));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write(String.format("# %d samples, one every %d instructions%n", _totalSamples, _sampleInterval));
+            writer.write(String.format("#  share   samples  address  instruction%n"));
+
+            for (int pc : addresses) {
+                writer.write(String.format("%7.2f%% %9d    0x%03X  %s%n",
+                    _pcSamples[pc] * 100.0 / _totalSamples, _pcSamples[pc], pc, Disassembler.disassemble(cpu.getDecodedInstruction(pc))));
+            }
+        }
+    }
+
+    private void writeCollapsed(BufferedWriter writer, int node, String stack, CPU cpu) throws IOException {
+        for (int page = 0; page < _pagesPerNode; page++) {
+            long[] counts = _samples[node * _pagesPerNode + page];
+            if (counts == null) {
+                continue;
+            }
+
+            for (int offset = 0; offset < counts.length; offset++) {
+                if (counts[offset] > 0) {
+                    int pc = page << PAGE_BITS | offset;
+                    writer.write(String.format("%s;0x%03X %s %d%n", stack, pc, Disassembler.disassemble(cpu.getDecodedInstruction(pc)), counts[offset]));
+                }
+            }
+        }
+
+        for (int child = _firstChild[node]; child != NONE; child = _nextSibling[child]) {
+            writeCollapsed(writer, child, String.format("%s;sub_%03X", stack, _functions[child]), cpu);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.ikeras;
+
+// The interpreters ROMs were written against disagree on a handful of instructions. Each profile
+// builds its own CPU class that overrides just those operations, so the choice is made once, when the
+// emulator is created, and nothing on the instruction path ever checks which profile is running.
+public enum QuirkProfile {
+    // The behaviour most modern ROMs expect: shifts work on Vx in place, Fx55 and Fx65 leave I alone,
+    // sprites clip at the screen edges and Bnnn jumps to nnn plus V0
+    CHIP8(4 * 1024) {
+        @Override
+        CPU createCpu(byte[] memory) {
+            return new CPU(memory);
+        }
+    },
+    // CHIP8, except that calls nested past the 16-entry stack overwrite the oldest return address
+    LENIENT(4 * 1024) {
+        @Override
+        CPU createCpu(byte[] memory) {
+            return new LenientCPU(memory);
+        }
+    },
+    VIP(4 * 1024) {
+        @Override
+        CPU createCpu(byte[] memory) {
+            return new VipCPU(memory);
+        }
+    },
+    SCHIP(4 * 1024) {
+        @Override
+        CPU createCpu(byte[] memory) {
+            return new SchipCPU(memory);
+        }
+    },
+    // Not just quirks: XO-CHIP adds memory, a second display plane and instructions of its own
+    XOCHIP(XoChipCPU.MEMORY_SIZE) {
+        @Override
+        CPU createCpu(byte[] memory) {
+            return new XoChipCPU(memory);
+        }
+    };
+
+    private final int _memorySize;
+
+    QuirkProfile(int memorySize) {
+        _memorySize = memorySize;
+    }
+
+    int getMemorySize() {
+        return _memorySize;
+    }
+
+    abstract CPU createCpu(byte[] memory);
+
+    // The profile a ROM written for the platform expects, for when none is given
+    static QuirkProfile forPlatform(Platform platform) {
+        switch (platform) {
+            case SCHIP:
+                return SCHIP;
+            case XOCHIP:
+                return XOCHIP;
+            default:
+                return CHIP8;
+        }
+    }
+
+    public static QuirkProfile parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown quirk profile " + name + ", expected one of CHIP8, LENIENT, VIP, SCHIP or XOCHIP");
+        }
+    }
+}
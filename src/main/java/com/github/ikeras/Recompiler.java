@@ -0,0 +1,482 @@
+package com.github.ikeras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Translates blocks of CHIP-8 code into hidden classes that call the CPU's operation methods with
+// constant opcodes, so HotSpot can inline them into straight-line code. Skips become branches inside
+// the block and a jump back to the block's own start becomes a loop, bounded by the instruction
+// budget. Blocks are cached by start address and dropped whenever memory they cover is written.
+//
+// Defining a class costs far more than interpreting a few instructions, so an address is only
+// compiled once execution has started there COMPILE_THRESHOLD times; until then it is interpreted.
+class Recompiler {
+    private static final int MAX_BLOCK_INSTRUCTIONS = 64;
+    private static final int COMPILE_THRESHOLD = 8;
+    private static final String CPU_CLASS = "com/github/ikeras/CPU";
+
+    private final CPU _cpu;
+    private final int[] _decoded;
+    private final MethodHandles.Lookup _lookup;
+    private final CompiledBlock[] _blocks;
+    private final int[] _blockLengths;
+    private final int[] _blockEnds;
+    private final byte[] _entryCounts;
+
+    Recompiler(CPU cpu, int[] decoded, MethodHandles.Lookup lookup) {
+        _cpu = cpu;
+        _decoded = decoded;
+        _lookup = lookup;
+        _blocks = new CompiledBlock[decoded.length];
+        _blockLengths = new int[decoded.length];
+        _blockEnds = new int[decoded.length];
+        _entryCounts = new byte[decoded.length];
+    }
+
+    int execute(int pc, int budget) {
+        CompiledBlock block = _blocks[pc];
+        if (block == null) {
+            if (_entryCounts[pc] < COMPILE_THRESHOLD) {
+                _entryCounts[pc]++;
+                _cpu.executeNextInstruction();
+                return 1;
+            }
+
+            block = compile(pc);
+        }
+
+        if (_blockLengths[pc] > budget) {
+            _cpu.executeNextInstruction();
+            return 1;
+        }
+
+        return block.execute(_cpu, budget);
+    }
+
+    void invalidate(int address, int length) {
+        int start = Math.max(0, address - MAX_BLOCK_INSTRUCTIONS * 2);
+        int end = Math.min(_blocks.length, address + length);
+
+        for (int i = start; i < end; i++) {
+            if (_blocks[i] != null && _blockEnds[i] > address) {
+                // Code that keeps rewriting itself then goes back to being interpreted for a while
+                _blocks[i] = null;
+                _entryCounts[i] = 0;
+            }
+        }
+    }
+
+    // A block runs until an instruction that leaves it, except that the instruction after a skip is
+    // always included so the not-skipped path stays inside the block. The exception is XO-CHIP's
+    // four-byte F000 nnnn: a skip over it lands past the end of the block, so the block ends at the skip.
+    private CompiledBlock compile(int start) {
+        int address = start;
+        int length = 0;
+        boolean shadowedBySkip = false;
+
+        while (address < _decoded.length && length < MAX_BLOCK_INSTRUCTIONS) {
+            int operation = _decoded[address] >>> 16;
+            address += 2;
+            length++;
+
+            if (exitsBlock(operation) && !shadowedBySkip) {
+                break;
+            }
+
+            if (isSkip(operation) && address < _decoded.length && _decoded[address] >>> 16 == CPU.OP_LD_I_LONG) {
+                break;
+            }
+
+            shadowedBySkip = isSkip(operation);
+        }
+
+        CompiledBlock block = define(start, length);
+        _blocks[start] = block;
+        _blockLengths[start] = length;
+        _blockEnds[start] = address;
+        return block;
+    }
+
+    private CompiledBlock define(int start, int length) {
+        try {
+            byte[] classFile = emit(start, length);
+            MethodHandles.Lookup blockLookup = _lookup.defineHiddenClass(classFile, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            return (CompiledBlock)blockLookup.findConstructor(blockLookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new RuntimeException("Unable to compile block at " + Integer.toHexString(start), e);
+        }
+    }
+
+    private static boolean isSkip(int operation) {
+        switch (operation) {
+            case CPU.OP_SE_IMMEDIATE:
+            case CPU.OP_SNE_IMMEDIATE:
+            case CPU.OP_SE_REGISTER:
+            case CPU.OP_SNE_REGISTER:
+            case CPU.OP_SKP:
+            case CPU.OP_SKNP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Operations that transfer control, wait, or write memory (which may invalidate the following code).
+    // F000 nnnn moves the pc past its second word itself.
+    private static boolean exitsBlock(int operation) {
+        switch (operation) {
+            case CPU.OP_UNKNOWN:
+            case CPU.OP_RET:
+            case CPU.OP_JP:
+            case CPU.OP_CALL:
+            case CPU.OP_JP_V0:
+            case CPU.OP_LD_VX_K:
+            case CPU.OP_LD_B:
+            case CPU.OP_LD_MEMORY_VX:
+            case CPU.OP_SAVE_RANGE:
+            case CPU.OP_LD_I_LONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Operations that read the pc or index memory through I, and so may throw. The pc is brought up
+    // to date before these run so state matches the interpreter exactly. The XO-CHIP ones throw on
+    // any other CPU.
+    private static boolean needsPc(int operation) {
+        switch (operation) {
+            case CPU.OP_DRW:
+            case CPU.OP_LD_VX_MEMORY:
+            case CPU.OP_LOAD_RANGE:
+            case CPU.OP_PLANE:
+            case CPU.OP_LD_AUDIO:
+            case CPU.OP_LD_PITCH:
+                return true;
+            default:
+                return exitsBlock(operation) || isSkip(operation);
+        }
+    }
+
+    // Generates:
+    //   int execute(CPU cpu, int budget) {
+    //       int count = 0;
+    //   start:
+    //       count++; cpu.opXxx(opcode); ...                   straight-line operations
+    //       count++; cpu._pc = a + 2; cpu.opSe(opcode);
+    //       if (cpu._pc != a + 2) goto a + 4;                  skips
+    //       count++; cpu.trace(a + 2, target);                 first pass only if there are no skips
+    //       if (count + length <= budget) goto start;          jumps back to the block start
+    //       count++; cpu._pc = a + 2; cpu.opCall(opcode); return count;    other exits
+    //   end:
+    //       cpu._pc = end; return count;
+    //   }
+    private byte[] emit(int start, int length) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(String.format("com/github/ikeras/Block_%03x", start));
+        int superClass = pool.classRef("java/lang/Object");
+        int blockInterface = pool.classRef("com/github/ikeras/CompiledBlock");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int pcField = pool.fieldRef(CPU_CLASS, "_pc", "I");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int executeName = pool.utf8("execute");
+        int executeDescriptor = pool.utf8("(L" + CPU_CLASS + ";I)I");
+        int codeName = pool.utf8("Code");
+        int stackMapTableName = pool.utf8("StackMapTable");
+
+        int end = start + length * 2;
+        // A block can run to the end of memory, after which the pc carries on from the start
+        int pcMask = _decoded.length - 1;
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        Map<Integer, Integer> labels = new HashMap<>();
+        Map<Integer, Integer> branches = new HashMap<>();
+        TreeSet<Integer> frames = new TreeSet<>();
+
+        code.writeByte(0x03); // iconst_0
+        code.writeByte(0x3e); // istore_3
+        int loopStart = code.size();
+        frames.add(loopStart);
+        // Without a skip, every pass round a block that jumps back to its start repeats the first, so
+        // only the first pass traces the jump
+        boolean hasSkip = false;
+
+        for (int i = 0; i < length; i++) {
+            int address = start + i * 2;
+            int decoded = _decoded[address];
+            int operation = decoded >>> 16;
+            int opcode = decoded & 0xffff;
+            labels.put(address, code.size());
+
+            code.writeByte(0x84); // iinc count, 1
+            code.writeByte(3);
+            code.writeByte(1);
+
+            if (Metrics.ENABLED) {
+                code.writeByte(0x2b); // aload_1
+                code.writeByte(0x10); // bipush
+                code.writeByte(operation);
+                code.writeByte(0xb6); // invokevirtual
+                code.writeShort(pool.methodRef(CPU_CLASS, "countOperation", "(I)V"));
+            }
+
+            if (operation == CPU.OP_JP) {
+                int target = opcode & 0xfff;
+                boolean firstPassOnly = target == start && !hasSkip;
+                if (firstPassOnly) {
+                    code.writeByte(0x1d); // iload_3
+                    code.writeByte(0x13); // ldc_w
+                    code.writeShort(pool.integer(length));
+                    code.writeByte(0xa0); // if_icmpne +13, past the call to trace
+                    code.writeShort(13);
+                }
+
+                code.writeByte(0x2b); // aload_1
+                code.writeByte(0x13); // ldc_w
+                code.writeShort(pool.integer((address + 2) & pcMask));
+                code.writeByte(0x13); // ldc_w
+                code.writeShort(pool.integer(target));
+                code.writeByte(0xb6); // invokevirtual
+                code.writeShort(pool.methodRef(CPU_CLASS, "trace", "(II)V"));
+                if (firstPassOnly) {
+                    frames.add(code.size());
+                }
+
+                if (target == start) {
+                    loopBack(code, pool, length, loopStart, frames);
+                }
+
+                storePc(code, pool, pcField, target);
+                returnCount(code, frames);
+                continue;
+            }
+
+            if (needsPc(operation)) {
+                storePc(code, pool, pcField, (address + 2) & pcMask);
+            }
+
+            code.writeByte(0x2b); // aload_1
+            code.writeByte(0x13); // ldc_w
+            code.writeShort(pool.integer(opcode));
+            code.writeByte(0xb6); // invokevirtual
+            code.writeShort(pool.methodRef(CPU_CLASS, CPU.OPERATION_METHODS[operation], "(I)V"));
+
+            hasSkip |= isSkip(operation);
+            if (exitsBlock(operation) || (isSkip(operation) && i == length - 1)) {
+                returnCount(code, frames);
+            } else if (isSkip(operation)) {
+                code.writeByte(0x2b); // aload_1
+                code.writeByte(0xb4); // getfield
+                code.writeShort(pcField);
+                code.writeByte(0x13); // ldc_w
+                code.writeShort(pool.integer(address + 2));
+                branches.put(code.size(), address + 4);
+                code.writeByte(0xa0); // if_icmpne
+                code.writeShort(0);
+            }
+        }
+
+        labels.put(end, code.size());
+        storePc(code, pool, pcField, end & pcMask);
+        code.writeByte(0x1d); // iload_3
+        code.writeByte(0xac); // ireturn
+
+        byte[] codeArray = codeBytes.toByteArray();
+        for (Map.Entry<Integer, Integer> branch : branches.entrySet()) {
+            int target = labels.get(branch.getValue());
+            int offset = target - branch.getKey();
+            codeArray[branch.getKey() + 1] = (byte)(offset >> 8);
+            codeArray[branch.getKey() + 2] = (byte)offset;
+            frames.add(target);
+        }
+
+        // Every frame has the same shape: this, cpu, budget, count and an empty stack
+        frames.remove(codeArray.length);
+        ByteArrayOutputStream stackMapBytes = new ByteArrayOutputStream();
+        DataOutputStream stackMap = new DataOutputStream(stackMapBytes);
+        stackMap.writeShort(frames.size());
+        int previous = -1;
+        for (int offset : frames) {
+            int delta = previous < 0 ? offset : offset - previous - 1;
+            if (previous < 0) {
+                stackMap.writeByte(252); // append_frame with one int local
+                stackMap.writeShort(delta);
+                stackMap.writeByte(1);
+            } else if (delta < 64) {
+                stackMap.writeByte(delta); // same_frame
+            } else {
+                stackMap.writeByte(251); // same_frame_extended
+                stackMap.writeShort(delta);
+            }
+
+            previous = offset;
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(61);
+        pool.write(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0);
+        out.writeShort(2);
+
+        // public <init>() { super(); }
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initDescriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + 5);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(5);
+        out.writeByte(0x2a); // aload_0
+        out.writeByte(0xb7); // invokespecial
+        out.writeShort(objectInit);
+        out.writeByte(0xb1); // return
+        out.writeShort(0);
+        out.writeShort(0);
+
+        // public int execute(CPU cpu, int budget)
+        out.writeShort(0x0001);
+        out.writeShort(executeName);
+        out.writeShort(executeDescriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + codeArray.length + 6 + stackMapBytes.size());
+        out.writeShort(3); // cpu and the two arguments to trace
+        out.writeShort(4);
+        out.writeInt(codeArray.length);
+        out.write(codeArray);
+        out.writeShort(0);
+        out.writeShort(1);
+        out.writeShort(stackMapTableName);
+        out.writeInt(stackMapBytes.size());
+        stackMapBytes.writeTo(out);
+
+        out.writeShort(0);
+        return classBytes.toByteArray();
+    }
+
+    // Jumps back to the start of the block if another full pass fits in the budget (12 bytes)
+    private static void loopBack(DataOutputStream code, ConstantPool pool, int length, int loopStart, TreeSet<Integer> frames) throws IOException {
+        code.writeByte(0x1d); // iload_3
+        code.writeByte(0x13); // ldc_w
+        code.writeShort(pool.integer(length));
+        code.writeByte(0x60); // iadd
+        code.writeByte(0x1c); // iload_2
+        code.writeByte(0xa3); // if_icmpgt +6, past the goto
+        code.writeShort(6);
+        code.writeByte(0xa7); // goto start
+        code.writeShort(loopStart - (code.size() - 1));
+        frames.add(code.size());
+    }
+
+    private static void storePc(DataOutputStream code, ConstantPool pool, int pcField, int pc) throws IOException {
+        code.writeByte(0x2b); // aload_1
+        code.writeByte(0x13); // ldc_w
+        code.writeShort(pool.integer(pc));
+        code.writeByte(0xb5); // putfield
+        code.writeShort(pcField);
+    }
+
+    // Leaves the block. The code that follows is only reachable by a branch, so it needs a frame.
+    private static void returnCount(DataOutputStream code, TreeSet<Integer> frames) throws IOException {
+        code.writeByte(0x1d); // iload_3
+        code.writeByte(0xac); // ireturn
+        frames.add(code.size());
+    }
+
+    private static final class ConstantPool {
+        private final Map<String, Integer> _entries = new HashMap<>();
+        private final List<byte[]> _bytes = new ArrayList<>();
+
+        int utf8(String value) throws IOException {
+            Integer index = _entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(1);
+            out.writeUTF(value);
+            return add("U" + value, bytes.toByteArray());
+        }
+
+        int integer(int value) throws IOException {
+            Integer index = _entries.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(3);
+            out.writeInt(value);
+            return add("I" + value, bytes.toByteArray());
+        }
+
+        int classRef(String name) throws IOException {
+            return reference("C" + name, 7, utf8(name));
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) throws IOException {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(_bytes.size() + 1);
+            for (byte[] entry : _bytes) {
+                out.write(entry);
+            }
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+            int ownerIndex = classRef(owner);
+            int nameAndType = reference("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+            return reference(tag + owner + "." + name + ":" + descriptor, tag, ownerIndex, nameAndType);
+        }
+
+        private int reference(String key, int tag, int... indices) throws IOException {
+            Integer index = _entries.get(key);
+            if (index != null) {
+                return index;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(tag);
+            for (int i : indices) {
+                out.writeShort(i);
+            }
+
+            return add(key, bytes.toByteArray());
+        }
+
+        private int add(String key, byte[] entry) {
+            _bytes.add(entry);
+            _entries.put(key, _bytes.size());
+            return _bytes.size();
+        }
+    }
+}
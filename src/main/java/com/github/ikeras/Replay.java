@@ -0,0 +1,189 @@
+package com.github.ikeras;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.commons.cli.*;
+
+// Re-runs a session recorded with Chip --record headless and unthrottled, applying each key event at
+// the frame it was recorded in and checking every state digest in the log along the way
+public class Replay {
+    private final class ReplayOptions {
+        private final String _romPath;
+        private final String _recordingPath;
+        private final boolean _useRecompiler;
+        private final String _videoPath;
+        private final Palette _palette;
+        private final int _videoScale;
+
+        public ReplayOptions(String romPath, String recordingPath, boolean useRecompiler, String videoPath, Palette palette, int videoScale) {
+            _romPath = romPath;
+            _recordingPath = recordingPath;
+            _useRecompiler = useRecompiler;
+            _videoPath = videoPath;
+            _palette = palette;
+            _videoScale = videoScale;
+        }
+
+        public String getRomPath() {
+            return _romPath;
+        }
+
+        public String getRecordingPath() {
+            return _recordingPath;
+        }
+
+        public boolean useRecompiler() {
+            return _useRecompiler;
+        }
+
+        public String getVideoPath() {
+            return _videoPath;
+        }
+
+        public Palette getPalette() {
+            return _palette;
+        }
+
+        public int getVideoScale() {
+            return _videoScale;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Replay replay = new Replay();
+        ReplayOptions options = replay.parseArgs(args);
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(options.getRecordingPath()))))) {
+            if (input.readInt() != InputRecorder.MAGIC) {
+                throw new IllegalArgumentException("Not an input recording: " + options.getRecordingPath());
+            }
+
+            short version = input.readShort();
+            if (version < 1 || version > InputRecorder.VERSION) {
+                throw new IllegalArgumentException("Unsupported input recording version: " + version);
+            }
+
+            long seed = input.readLong();
+            int instructionsPerSecond = input.readInt();
+            long romHash = input.readLong();
+            QuirkProfile quirks = version >= 2 ? QuirkProfile.parse(input.readUTF()) : QuirkProfile.CHIP8;
+
+            Emulator emulator = new Emulator(options.useRecompiler(), quirks);
+            emulator.setRandomSeed(seed);
+            emulator.loadRom(options.getRomPath());
+
+            if (emulator.getRomHash() != romHash) {
+                System.out.println("FAIL  the recording was made with a different ROM");
+                System.exit(1);
+            }
+
+            // Nothing is watching, so emulation waits for the encoder rather than drop frames
+            if (options.getVideoPath() != null) {
+                emulator.startVideo(Paths.get(options.getVideoPath()), options.getPalette(), options.getVideoScale(), true);
+            }
+
+            long startTime = System.nanoTime();
+            long frame = 0;
+            int checkpoints = 0;
+
+            while (true) {
+                int type;
+                try {
+                    type = input.readUnsignedByte();
+                } catch (EOFException e) {
+                    System.out.println("FAIL  the recording is truncated after frame " + frame);
+                    System.exit(1);
+                    return;
+                }
+
+                frame += readVarint(input);
+                while (emulator.getFrameNumber() < frame) {
+                    emulator.runFrame(Scheduler.instructionsForFrame(emulator.getFrameNumber(), instructionsPerSecond));
+                }
+
+                if (type == InputRecorder.KEY_DOWN || type == InputRecorder.KEY_UP) {
+                    emulator.applyKey(input.readUnsignedByte(), type == InputRecorder.KEY_DOWN);
+                } else if (type == InputRecorder.CHECKPOINT || type == InputRecorder.END) {
+                    long expected = input.readLong();
+                    if (emulator.getStateDigest() != expected) {
+                        System.out.printf("FAIL  diverged by frame %d (%.1fs into the session)%n", frame, frame / (double)Scheduler.FRAMES_PER_SECOND);
+                        System.exit(1);
+                    }
+
+                    checkpoints++;
+                    if (type == InputRecorder.END) {
+                        break;
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown input recording entry: " + type);
+                }
+            }
+
+            emulator.stopVideo();
+
+            double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+            double sessionSeconds = frame / (double)Scheduler.FRAMES_PER_SECOND;
+            System.out.printf("OK    %d frames (%.1fs of play), %d checkpoints matched in %.2fs, %.0fx real time%n",
+                frame, sessionSeconds, checkpoints, elapsedSeconds, elapsedSeconds == 0 ? 0 : sessionSeconds / elapsedSeconds);
+        }
+    }
+
+    private static long readVarint(DataInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = input.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    private ReplayOptions parseArgs(String[] args) {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("j", "jit", false, "Execute through the block recompiler instead of the interpreter");
+        options.addOption("v", "video", true, "Write the session to an animated GIF, or an APNG for a .png file");
+        options.addOption(null, "video-scale", true, "Draw each pixel of the video as a block this many pixels across, up to " + VideoEncoder.MAX_SCALE + ", doubled in low resolution (default 4)");
+        options.addOption(null, "palette", true, "Colours for the video: CLASSIC, AMBER, GREEN or LCD (default CLASSIC)");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            String[] appArgs = cmd.getArgs();
+            Palette palette = Palette.CLASSIC;
+            int videoScale = 4;
+
+            if (cmd.hasOption("help") || appArgs.length < 2) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("Replay [options] <rom> <recording>", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("palette")) {
+                palette = Palette.parse(cmd.getOptionValue("palette"));
+            }
+
+            if (cmd.hasOption("video-scale")) {
+                videoScale = Integer.parseInt(cmd.getOptionValue("video-scale").trim());
+                if (videoScale < 1 || videoScale > VideoEncoder.MAX_SCALE) {
+                    throw new IllegalArgumentException("Video scale must be between 1 and " + VideoEncoder.MAX_SCALE);
+                }
+            }
+
+            return new ReplayOptions(appArgs[0], appArgs[1], cmd.hasOption("jit"), cmd.getOptionValue("video"), palette, videoScale);
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
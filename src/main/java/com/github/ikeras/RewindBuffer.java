@@ -0,0 +1,236 @@
+package com.github.ikeras;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Ring of per-frame save states for rewinding. Every KEYFRAME_INTERVAL frames a keyframe is stored,
+// and the frames in between are stored as the XOR against their keyframe, run-length encoded as
+// alternating (zero run, literal run) varint pairs. Consecutive frames differ in a handful of bytes,
+// so a delta is usually a few dozen bytes instead of a full state.
+//
+// Records live back to back in one preallocated arena. When the arena or the frame ring is full the
+// oldest keyframe is evicted along with its deltas, so memory use never grows past the arena.
+// Everything except the volatile statistics is confined to the emulation thread.
+final class RewindBuffer {
+    static final int KEYFRAME_INTERVAL = 60;
+    private static final VarHandle BYTES_AS_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final int _stateSize;
+    private final int _maxRecordSize;
+    private final byte[] _arena;
+    // Per frame slot: arena offset, encoded length and the slot of the keyframe it is relative to
+    private final int[] _offsets;
+    private final int[] _lengths;
+    private final int[] _keyframes;
+
+    private final byte[] _state;
+    private final ByteBuffer _stateBuffer;
+    private final byte[] _keyframeState;
+    private final byte[] _emptyState;
+
+    private int _oldest;
+    private int _count;
+    private int _currentKeyframe;
+    private int _framesSinceKeyframe;
+    private boolean _needsKeyframe = true;
+
+    private volatile int _frameCount;
+    private volatile long _usedBytes;
+
+    RewindBuffer(int stateSize, int frames, int arenaBytes) {
+        _stateSize = stateSize;
+        // Worst case for the encoding is alternating zero and non-zero bytes, 3 bytes per 2 of state
+        _maxRecordSize = stateSize + stateSize / 2 + 16;
+        _arena = new byte[Math.max(arenaBytes, _maxRecordSize * 2)];
+        _offsets = new int[frames];
+        _lengths = new int[frames];
+        _keyframes = new int[frames];
+        _state = new byte[stateSize];
+        _stateBuffer = ByteBuffer.wrap(_state);
+        _keyframeState = new byte[stateSize];
+        _emptyState = new byte[stateSize];
+    }
+
+    // Snapshots the CPU as the newest frame
+    void capture(CPU cpu) {
+        _stateBuffer.clear();
+        cpu.saveState(_stateBuffer);
+
+        int offset = reserve();
+        int slot = (_oldest + _count) % _offsets.length;
+
+        if (_count == 0 || _needsKeyframe || _framesSinceKeyframe >= KEYFRAME_INTERVAL) {
+            System.arraycopy(_state, 0, _keyframeState, 0, _stateSize);
+            _lengths[slot] = encode(_state, _emptyState, offset);
+            _currentKeyframe = slot;
+            _framesSinceKeyframe = 0;
+            _needsKeyframe = false;
+        } else {
+            _lengths[slot] = encode(_state, _keyframeState, offset);
+        }
+
+        _offsets[slot] = offset;
+        _keyframes[slot] = _currentKeyframe;
+        _framesSinceKeyframe++;
+        _count++;
+
+        _frameCount = _count;
+        _usedBytes += _lengths[slot];
+    }
+
+    // Drops the newest frame and restores the CPU to the one before it, so repeated calls walk
+    // backwards in time. Returns false once there is nothing left to rewind to.
+    boolean rewind(CPU cpu) {
+        if (_count < 2) {
+            return false;
+        }
+
+        _count--;
+        _frameCount = _count;
+        _usedBytes -= _lengths[(_oldest + _count) % _offsets.length];
+
+        int slot = (_oldest + _count - 1) % _offsets.length;
+        int keyframe = _keyframes[slot];
+
+        Arrays.fill(_state, (byte)0);
+        decode(_offsets[keyframe], _lengths[keyframe]);
+        if (slot != keyframe) {
+            decode(_offsets[slot], _lengths[slot]);
+        }
+
+        _stateBuffer.clear();
+        cpu.restoreState(_stateBuffer);
+
+        // The keyframe later deltas were taken against may be gone, so start a fresh one on the next capture
+        _needsKeyframe = true;
+        return true;
+    }
+
+    int getFrameCount() {
+        return _frameCount;
+    }
+
+    long getUsedBytes() {
+        return _usedBytes;
+    }
+
+    long getCapacityBytes() {
+        return _arena.length + (long)_offsets.length * 12 + _stateSize * 3L;
+    }
+
+    // Finds room in the arena for a worst-case record, evicting the oldest keyframe groups as needed
+    private int reserve() {
+        if (_count == _offsets.length) {
+            evictOldestGroup();
+        }
+
+        while (_count > 0) {
+            int head = _offsets[_oldest];
+            int newest = (_oldest + _count - 1) % _offsets.length;
+            int tail = _offsets[newest] + _lengths[newest];
+
+            if (_offsets[newest] >= head) {
+                // Live records occupy [head, tail), free space is at the end and then at the start
+                if (_arena.length - tail >= _maxRecordSize) {
+                    return tail;
+                }
+
+                if (head >= _maxRecordSize) {
+                    return 0;
+                }
+            } else if (head - tail >= _maxRecordSize) {
+                // Live records wrapped around, free space is the gap between them
+                return tail;
+            }
+
+            evictOldestGroup();
+        }
+
+        return 0;
+    }
+
+    private void evictOldestGroup() {
+        do {
+            _usedBytes -= _lengths[_oldest];
+            _oldest = (_oldest + 1) % _offsets.length;
+            _count--;
+        } while (_count > 0 && _keyframes[_oldest] != _oldest);
+
+        _frameCount = _count;
+    }
+
+    // XORs state against the reference and run-length encodes the result; keyframes use all zeros
+    private int encode(byte[] state, byte[] reference, int offset) {
+        int position = offset;
+        int i = 0;
+
+        while (i < _stateSize) {
+            int zeroStart = i;
+            // Most of a delta is unchanged, so skip equal bytes a word at a time first
+            while (i + 8 <= _stateSize && (long)BYTES_AS_LONG.get(state, i) == (long)BYTES_AS_LONG.get(reference, i)) {
+                i += 8;
+            }
+
+            while (i < _stateSize && (state[i] ^ reference[i]) == 0) {
+                i++;
+            }
+
+            int literalStart = i;
+            while (i < _stateSize && (state[i] ^ reference[i]) != 0) {
+                i++;
+            }
+
+            position = writeVarint(position, literalStart - zeroStart);
+            position = writeVarint(position, i - literalStart);
+            for (int j = literalStart; j < i; j++) {
+                _arena[position++] = (byte)(state[j] ^ reference[j]);
+            }
+        }
+
+        return position - offset;
+    }
+
+    // XORs a record into _state
+    private void decode(int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        int i = 0;
+
+        while (position < end) {
+            int zeros = 0;
+            int shift = 0;
+            byte value;
+            do {
+                value = _arena[position++];
+                zeros |= (value & 0x7f) << shift;
+                shift += 7;
+            } while (value < 0);
+
+            int literals = 0;
+            shift = 0;
+            do {
+                value = _arena[position++];
+                literals |= (value & 0x7f) << shift;
+                shift += 7;
+            } while (value < 0);
+
+            i += zeros;
+            for (int j = 0; j < literals; j++) {
+                _state[i++] ^= _arena[position++];
+            }
+        }
+    }
+
+    private int writeVarint(int position, int value) {
+        while (value >= 0x80) {
+            _arena[position++] = (byte)(value | 0x80);
+            value >>>= 7;
+        }
+
+        _arena[position++] = (byte)value;
+        return position;
+    }
+}
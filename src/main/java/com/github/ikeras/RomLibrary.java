@@ -0,0 +1,255 @@
+package com.github.ikeras;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// The ROMs under a set of directories with their hash and platform, kept in a plain text index so
+// that a rescan only reads the files whose size or modification time changed. The directories are
+// walked in parallel, and the ROMs that changed are mapped rather than read, and hashed and classified
+// as they are found.
+final class RomLibrary {
+    static final class Entry {
+        private final Path _path;
+        private final long _size;
+        private final long _modified;
+        private final long _hash;
+        private final Platform _platform;
+
+        Entry(Path path, long size, long modified, long hash, Platform platform) {
+            _path = path;
+            _size = size;
+            _modified = modified;
+            _hash = hash;
+            _platform = platform;
+        }
+
+        Path getPath() {
+            return _path;
+        }
+
+        long getSize() {
+            return _size;
+        }
+
+        long getHash() {
+            return _hash;
+        }
+
+        Platform getPlatform() {
+            return _platform;
+        }
+
+        private boolean isCurrent(BasicFileAttributes attributes) {
+            return attributes.size() == _size && attributes.lastModifiedTime().toMillis() == _modified;
+        }
+    }
+
+    private final Path _indexPath;
+    // By absolute path, so listings come out sorted
+    private final Map<Path, Entry> _entries = new TreeMap<>();
+    private int _indexed;
+    private int _reused;
+    private int _failed;
+    private int _dropped;
+
+    // Reads the index if there is one yet
+    RomLibrary(Path indexPath) throws IOException {
+        _indexPath = indexPath;
+
+        if (Files.exists(indexPath)) {
+            for (String line : Files.readAllLines(indexPath)) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+
+                // "<hash> <size> <modified> <platform> <path>", the path last as it may hold spaces
+                String[] fields = line.split(" ", 5);
+                if (fields.length < 5) {
+                    throw new IOException("Malformed line in " + indexPath + ": " + line);
+                }
+
+                Path path = Paths.get(fields[4]);
+                _entries.put(path, new Entry(path, Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseUnsignedLong(fields[0], 16), Platform.valueOf(fields[3])));
+            }
+        }
+    }
+
+    // Brings the entries for the given directories up to date on a pool of threads: each directory is
+    // listed by a task of its own, new and changed ROMs are hashed and classified by a task each, and
+    // unchanged ones are kept as they are. A ROM that can't be read or stat'ed, or a directory that can't
+    // be listed, is counted as failed and keeps the previous entries under it. Entries for files that
+    // have gone are dropped. Entries outside these directories are left alone.
+    void update(List<Path> directories, int threads) {
+        List<Path> roots = new ArrayList<>();
+        for (Path directory : directories) {
+            roots.add(directory.toAbsolutePath().normalize());
+        }
+
+        Map<Path, Entry> previous = new HashMap<>();
+        _entries.entrySet().removeIf(entry -> {
+            for (Path root : roots) {
+                if (entry.getKey().startsWith(root)) {
+                    previous.put(entry.getKey(), entry.getValue());
+                    return true;
+                }
+            }
+
+            return false;
+        });
+
+        // Filled in by the tasks, which only read previous
+        Map<Path, Entry> found = new ConcurrentSkipListMap<>();
+        Map<Path, Exception> failures = new ConcurrentSkipListMap<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Path root : roots) {
+            tasks.add(ForkJoinTask.adapt(() -> scan(root, previous, found, failures)));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        _indexed = 0;
+        _reused = 0;
+        for (Entry entry : found.values()) {
+            if (entry == previous.remove(entry.getPath())) {
+                _reused++;
+            } else {
+                _indexed++;
+            }
+
+            _entries.put(entry.getPath(), entry);
+        }
+
+        _failed = failures.size();
+        for (Map.Entry<Path, Exception> failure : failures.entrySet()) {
+            System.err.println("Unable to index " + failure.getKey() + ": " + failure.getValue());
+
+            previous.entrySet().removeIf(entry -> {
+                if (entry.getKey().startsWith(failure.getKey())) {
+                    _entries.put(entry.getKey(), entry.getValue());
+                    return true;
+                }
+
+                return false;
+            });
+        }
+
+        _dropped = previous.size();
+    }
+
+    // Written to a temporary file first, so an interrupted save leaves the old index in place
+    void save() throws IOException {
+        Path directory = _indexPath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, _indexPath.getFileName().toString(), ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary)) {
+            writer.write("# Hash, size, modification time, platform and path of each ROM, kept up to date by Library");
+            writer.newLine();
+
+            for (Entry entry : _entries.values()) {
+                writer.write(String.format("%016x %d %d %s %s", entry._hash, entry._size, entry._modified, entry._platform, entry._path));
+                writer.newLine();
+            }
+        }
+
+        Files.move(temporary, _indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    Collection<Entry> getEntries() {
+        return _entries.values();
+    }
+
+    // Counts from the last update
+    int getIndexed() {
+        return _indexed;
+    }
+
+    int getReused() {
+        return _reused;
+    }
+
+    int getFailed() {
+        return _failed;
+    }
+
+    int getDropped() {
+        return _dropped;
+    }
+
+    // A directory's files and subdirectories become tasks of their own, run before this one returns,
+    // and unchanged ROMs are taken from previous without reading them. Attributes are read without
+    // following links, as a file walk does by default. A file can vanish between being listed and
+    // being stat'ed, which is a failure like any other.
+    private static void scan(Path path, Map<Path, Entry> previous, Map<Path, Entry> found, Map<Path, Exception> failures) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            failures.put(path, e);
+            return;
+        }
+
+        if (attributes.isRegularFile()) {
+            if (!BatchRunner.isRom(path)) {
+                return;
+            }
+
+            Entry known = previous.get(path);
+            if (known != null && known.isCurrent(attributes)) {
+                found.put(path, known);
+                return;
+            }
+
+            try {
+                found.put(path, index(path, attributes));
+            } catch (IOException | RuntimeException e) {
+                failures.put(path, e);
+            }
+        } else if (attributes.isDirectory()) {
+            // The files listed before a listing fails are still scanned
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    tasks.add(ForkJoinTask.adapt(() -> scan(file, previous, found, failures)));
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                failures.put(path, e);
+            }
+
+            ForkJoinTask.invokeAll(tasks);
+        }
+    }
+
+    private static Entry index(Path rom, BasicFileAttributes attributes) throws IOException {
+        byte[] bytes = new byte[(int)attributes.size()];
+        try (FileChannel channel = FileChannel.open(rom, StandardOpenOption.READ)) {
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes.length).get(bytes);
+        }
+
+        return new Entry(rom, bytes.length, attributes.lastModifiedTime().toMillis(), Hashing.fnv1a(bytes), Platform.detect(bytes));
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.ikeras;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Runs the emulator in 60Hz frames against System.nanoTime() deadlines. Each frame executes its
+// share of the target instructions per second (spreading the remainder so no instructions are lost
+// to rounding), then ticks the timers and publishes the display. A late frame is made up by running
+// the following frames back to back; past MAX_CATCH_UP_FRAMES behind, the missed frames are dropped
+// instead so a long stall doesn't turn into a burst of fast-forward.
+//
+// In turbo mode frames run back to back with no deadlines. Timers still tick once per emulated
+// frame, so games see normal timing relative to their own instructions, but the display is only
+// published once per real frame and everything in between is skipped.
+final class Scheduler {
+    static final int FRAMES_PER_SECOND = 60;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long NANOS_PER_FRAME = NANOS_PER_SECOND / FRAMES_PER_SECOND;
+    private static final int MAX_CATCH_UP_FRAMES = 5;
+
+    private final Emulator _emulator;
+    private final int _instructionsPerSecond;
+    private volatile boolean _isRunning;
+    private volatile double _achievedInstructionsPerSecond;
+    private volatile double _frameSkipRatio;
+    private volatile long _lateFrames;
+    private volatile long _droppedFrames;
+
+    Scheduler(Emulator emulator, int instructionsPerSecond) {
+        _emulator = emulator;
+        _instructionsPerSecond = instructionsPerSecond;
+    }
+
+    // Runs on the calling thread until stop() is called
+    void run() {
+        _isRunning = true;
+
+        long start = System.nanoTime();
+        long frame = 0;
+        long nextPublish = start;
+        boolean wasTurbo = false;
+        long windowStart = start;
+        long windowInstructions = 0;
+        long windowFrames = 0;
+        long windowSkippedFrames = 0;
+
+        while (_isRunning) {
+            long now = System.nanoTime();
+            boolean publish = true;
+
+            if (_emulator.isTurbo()) {
+                publish = now >= nextPublish;
+                if (publish) {
+                    nextPublish = now + NANOS_PER_FRAME;
+                }
+
+                wasTurbo = true;
+            } else {
+                if (wasTurbo) {
+                    // Start a fresh timeline rather than treating the turbo period as lateness
+                    start = now;
+                    frame = 0;
+                    wasTurbo = false;
+                }
+
+                long deadline = start + frame * NANOS_PER_SECOND / FRAMES_PER_SECOND;
+                if (now < deadline) {
+                    LockSupport.parkNanos(deadline - now);
+                    continue;
+                }
+
+                long framesBehind = (now - deadline) * FRAMES_PER_SECOND / NANOS_PER_SECOND;
+                if (framesBehind > MAX_CATCH_UP_FRAMES) {
+                    _droppedFrames += framesBehind;
+                    frame += framesBehind;
+                } else if (framesBehind > 0) {
+                    _lateFrames++;
+                }
+
+                frame++;
+            }
+
+            // Sized by the emulator's own frame count rather than the wall clock frame so a recording
+            // replays with exactly the same batches, dropped frames or not
+            int instructions = instructionsForFrame(_emulator.getFrameNumber(), _instructionsPerSecond);
+            windowInstructions += _emulator.runFrame(instructions, publish);
+            windowFrames++;
+            if (!publish) {
+                windowSkippedFrames++;
+            }
+
+            if (now - windowStart >= NANOS_PER_SECOND) {
+                _achievedInstructionsPerSecond = windowInstructions * (double)NANOS_PER_SECOND / (now - windowStart);
+                _frameSkipRatio = windowSkippedFrames / (double)windowFrames;
+                windowStart = now;
+                windowInstructions = 0;
+                windowFrames = 0;
+                windowSkippedFrames = 0;
+            }
+        }
+    }
+
+    // Spreads instructionsPerSecond over 60 frames so that every second runs exactly that many
+    static int instructionsForFrame(long frame, int instructionsPerSecond) {
+        return (int)((frame + 1) * instructionsPerSecond / FRAMES_PER_SECOND - frame * instructionsPerSecond / FRAMES_PER_SECOND);
+    }
+
+    void stop() {
+        _isRunning = false;
+    }
+
+    int getTargetInstructionsPerSecond() {
+        return _instructionsPerSecond;
+    }
+
+    // Measured over the last whole second
+    double getAchievedInstructionsPerSecond() {
+        return _achievedInstructionsPerSecond;
+    }
+
+    // Fraction of emulated frames over the last second that were never shown, non-zero only in turbo
+    double getFrameSkipRatio() {
+        return _frameSkipRatio;
+    }
+
+    // Frames that started after their deadline but were caught up
+    long getLateFrames() {
+        return _lateFrames;
+    }
+
+    // Frames skipped entirely because the emulator fell too far behind
+    long getDroppedFrames() {
+        return _droppedFrames;
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.ikeras;
+
+// SCHIP on the HP-48: Bxnn jumps to xnn plus Vx rather than V0
+final class SchipCPU extends CPU {
+    SchipCPU(byte[] memory) {
+        super(memory);
+    }
+
+    @Override
+    void opJpV0(int opcode) {
+        transfer((_registers[(opcode >> 8) & 0x0f] + (opcode & 0xfff)) & 0xffff);
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// One client's emulator and connection, ticked once per 60Hz frame by the SessionWorker that owns
+// it. The socket is non-blocking: key bytes are applied as they arrive, and a frame is only encoded
+// once the previous one has been fully written. A client that can't keep up therefore gets fewer,
+// larger deltas (against the frame it last received) rather than a growing backlog.
+final class Session {
+    private final int _id;
+    private final String _romName;
+    private final Emulator _emulator;
+    private final SocketChannel _channel;
+    private final int _instructionsPerSecond;
+    private final ByteBuffer _input = ByteBuffer.allocate(256);
+    private final ByteBuffer _output = ByteBuffer.allocateDirect(SessionProtocol.MAX_MESSAGE_BYTES);
+    private final long[] _sentPixels = new long[Frame.MAX_WORDS * Frame.PLANES];
+    private int _sentWidth;
+    private int _sentHeight;
+    private boolean _isClosed;
+
+    // Only touched by the owning worker
+    private long _frames;
+    private long _nanos;
+    private long _bytesSent;
+    private long _framesHeld;
+
+    Session(int id, String romName, Emulator emulator, SocketChannel channel, int instructionsPerSecond) throws IOException {
+        _id = id;
+        _romName = romName;
+        _emulator = emulator;
+        _channel = channel;
+        _instructionsPerSecond = instructionsPerSecond;
+        _output.flip();
+
+        channel.configureBlocking(false);
+    }
+
+    // Runs one frame and sends whatever changed. Returns false once the session has ended, either
+    // because the client went away or because the ROM failed.
+    boolean tick() {
+        if (_isClosed) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (!readKeys()) {
+                System.err.printf("Session %d (%s) disconnected after %d frames%n", _id, _romName, _frames);
+                close();
+                return false;
+            }
+
+            _emulator.runFrame(Scheduler.instructionsForFrame(_emulator.getFrameNumber(), _instructionsPerSecond));
+
+            if (flush()) {
+                sendFrame();
+                flush();
+            } else {
+                _framesHeld++;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Session %d (%s) ended after %d frames: %s%n", _id, _romName, _frames, e);
+            close();
+            return false;
+        }
+
+        _frames++;
+        _nanos += System.nanoTime() - start;
+        return true;
+    }
+
+    void close() {
+        _isClosed = true;
+
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // Nothing more to do for a connection that is going away anyway
+        }
+    }
+
+    long getFrames() {
+        return _frames;
+    }
+
+    long getNanos() {
+        return _nanos;
+    }
+
+    long getBytesSent() {
+        return _bytesSent;
+    }
+
+    long getFramesHeld() {
+        return _framesHeld;
+    }
+
+    // Applies any key events that have arrived; false if the client has closed the connection
+    private boolean readKeys() throws IOException {
+        if (_channel.read(_input) < 0) {
+            return false;
+        }
+
+        _input.flip();
+        while (_input.hasRemaining()) {
+            int event = _input.get();
+            _emulator.applyKey(event & 0x0f, (event & SessionProtocol.KEY_PRESSED) != 0);
+        }
+
+        _input.clear();
+        return true;
+    }
+
+    private void sendFrame() {
+        Frame frame = _emulator.acquireFrame();
+        boolean reset = frame.getWidth() != _sentWidth || frame.getHeight() != _sentHeight;
+
+        _output.clear();
+        if (SessionProtocol.encodeFrame(frame, _emulator.getFrameNumber(), _sentPixels, reset, _output)) {
+            _sentWidth = frame.getWidth();
+            _sentHeight = frame.getHeight();
+        }
+
+        _output.flip();
+    }
+
+    // Writes as much of the pending frame as the socket takes; true if nothing is left over
+    private boolean flush() throws IOException {
+        if (_output.hasRemaining()) {
+            _bytesSent += _channel.write(_output);
+        }
+
+        return !_output.hasRemaining();
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.commons.cli.*;
+
+// Headless host for many emulator sessions at once, one per connected client. Sessions are spread
+// over a small pool of workers that tick them at 60Hz and stream each frame back as row deltas (see
+// SessionProtocol); key events come in over the same loopback connection.
+//
+// Every report interval it prints what a session costs: worker time per session frame, worker CPU
+// use, bandwidth, and bytes allocated setting one up. From the time per frame it works out how many
+// sessions a single core could hold at real-time speed. --clients starts that many simulated players
+// in the same process to measure this without any real clients, then exits.
+public class SessionHost {
+    private static final int DEFAULT_PORT = 6464;
+
+    private final class HostOptions {
+        private final List<Path> _roms;
+        private final int _port;
+        private final int _threads;
+        private final int _instructionsPerSecond;
+        private final boolean _useRecompiler;
+        private final int _clients;
+        private final int _durationSeconds;
+        private final int _reportSeconds;
+
+        public HostOptions(List<Path> roms, int port, int threads, int instructionsPerSecond, boolean useRecompiler, int clients, int durationSeconds, int reportSeconds) {
+            _roms = roms;
+            _port = port;
+            _threads = threads;
+            _instructionsPerSecond = instructionsPerSecond;
+            _useRecompiler = useRecompiler;
+            _clients = clients;
+            _durationSeconds = durationSeconds;
+            _reportSeconds = reportSeconds;
+        }
+
+        public List<Path> getRoms() {
+            return _roms;
+        }
+
+        public int getPort() {
+            return _port;
+        }
+
+        public int getThreads() {
+            return _threads;
+        }
+
+        public int getInstructionsPerSecond() {
+            return _instructionsPerSecond;
+        }
+
+        public boolean useRecompiler() {
+            return _useRecompiler;
+        }
+
+        public int getClients() {
+            return _clients;
+        }
+
+        public int getDurationSeconds() {
+            return _durationSeconds;
+        }
+
+        public int getReportSeconds() {
+            return _reportSeconds;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SessionHost host = new SessionHost();
+        HostOptions options = host.parseArgs(args);
+
+        SessionServer server = new SessionServer(options.getRoms(), options.getPort(), options.getThreads(), options.getInstructionsPerSecond(), options.useRecompiler());
+        server.start();
+        System.out.printf("Serving %d ROMs on loopback port %d with %d workers%n", options.getRoms().size(), server.getPort(), options.getThreads());
+
+        if (options.getClients() == 0) {
+            while (true) {
+                Thread.sleep(options.getReportSeconds() * 1000L);
+                System.out.println(server.report());
+            }
+        }
+
+        LoadClients clients = new LoadClients(server.getPort(), server.getRomNames(), options.getClients(), 0);
+        Thread clientThread = new Thread(clients, "utz-load-clients");
+        clientThread.setDaemon(true);
+        clientThread.start();
+
+        // Let the JIT settle and every session get going before the measured window
+        Thread.sleep(5000);
+        server.report();
+        long startFrames = clients.getFramesReceived();
+        long startBytes = clients.getBytesReceived();
+
+        for (int elapsed = 0; elapsed < options.getDurationSeconds(); elapsed += options.getReportSeconds()) {
+            Thread.sleep(Math.min(options.getReportSeconds(), options.getDurationSeconds() - elapsed) * 1000L);
+            System.out.println(server.report());
+        }
+
+        long frames = clients.getFramesReceived() - startFrames;
+        long bytes = clients.getBytesReceived() - startBytes;
+        System.out.printf("%d clients received %d frames, %.1f bytes per frame, %.2f KB/s each%n",
+            clients.getClientCount(), frames, frames == 0 ? 0 : bytes / (double)frames,
+            bytes / 1024.0 / options.getDurationSeconds() / clients.getClientCount());
+
+        clients.stop();
+        server.stop();
+    }
+
+    private HostOptions parseArgs(String[] args) throws IOException {
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print this help message");
+        options.addOption("p", "port", true, "Loopback port to listen on (default " + DEFAULT_PORT + ", 0 for any free port)");
+        options.addOption("t", "threads", true, "Number of worker threads ticking sessions (default: all available processors)");
+        options.addOption("s", "speed", true, "Number of operations to emulate per second in each session (default 700)");
+        options.addOption("j", "jit", false, "Execute through the block recompiler instead of the interpreter");
+        options.addOption("c", "clients", true, "Start this many simulated clients, report on them, then exit");
+        options.addOption("d", "duration", true, "Seconds to measure simulated clients for (default 30)");
+        options.addOption("r", "report", true, "Seconds between reports (default 5)");
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            int port = DEFAULT_PORT;
+            int threads = Runtime.getRuntime().availableProcessors();
+            int instructionsPerSecond = 700;
+            int clients = 0;
+            int durationSeconds = 30;
+            int reportSeconds = 5;
+            String[] appArgs = cmd.getArgs();
+
+            if (cmd.hasOption("help") || appArgs.length < 1) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("SessionHost [options] <rom or directory>...", options);
+                System.exit(0);
+            }
+
+            if (cmd.hasOption("port")) {
+                port = Integer.parseInt(cmd.getOptionValue("port").trim());
+            }
+
+            if (cmd.hasOption("threads")) {
+                threads = Integer.parseInt(cmd.getOptionValue("threads").trim());
+            }
+
+            if (cmd.hasOption("speed")) {
+                instructionsPerSecond = Integer.parseInt(cmd.getOptionValue("speed").trim());
+            }
+
+            if (cmd.hasOption("clients")) {
+                clients = Integer.parseInt(cmd.getOptionValue("clients").trim());
+            }
+
+            if (cmd.hasOption("duration")) {
+                durationSeconds = Integer.parseInt(cmd.getOptionValue("duration").trim());
+            }
+
+            if (cmd.hasOption("report")) {
+                reportSeconds = Integer.parseInt(cmd.getOptionValue("report").trim());
+            }
+
+            List<Path> roms = BatchRunner.findRoms(appArgs);
+            if (roms.isEmpty()) {
+                throw new ParseException("No ROMs found");
+            }
+
+            return new HostOptions(roms, port, threads, instructionsPerSecond, cmd.hasOption("jit"), clients, durationSeconds, reportSeconds);
+        } catch (ParseException e) {
+            System.err.println("Error parsing command line arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+}
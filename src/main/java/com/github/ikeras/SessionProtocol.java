@@ -0,0 +1,166 @@
+package com.github.ikeras;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Wire format between SessionHost and its clients.
+//
+// A client opens with the name of the ROM it wants, as written by DataOutputStream.writeUTF, and
+// after that sends single bytes: KEY_PRESSED | key for a key going down, the key alone for it
+// coming back up.
+//
+// The host sends frames, each a u16 payload length followed by
+//   u8 flags, u8 words per row, u8 height, u32 frame number, u8 changed rows
+// and then for every changed row of every plane
+//   u8 row, counting the second plane's rows on from PLANE_ROWS, the row's XOR with what the client
+//   last had as a byte mask (u8 per 64 pixel word, most significant byte of the row first), then the
+//   non-zero XOR bytes themselves.
+// Only XO-CHIP draws on the second plane, so for other ROMs it never changes and costs nothing.
+// A frame with FLAG_RESET set starts from a blank display, which the host sends first and whenever
+// the resolution changes. Frames with nothing changed aren't sent at all, so a static screen costs
+// nothing; a sprite moving over a row usually costs four or five bytes for that row.
+final class SessionProtocol {
+    static final int KEY_PRESSED = 0x80;
+    static final int FLAG_RESET = 0x01;
+
+    static final int HEADER_BYTES = 8;
+    static final int PLANE_ROWS = 64;
+    // Every row of both planes of a 128x64 display changing in every byte
+    static final int MAX_MESSAGE_BYTES = 2 + HEADER_BYTES + Frame.PLANES * PLANE_ROWS * (1 + 2 + 16);
+
+    private SessionProtocol() {
+    }
+
+    // Appends the changes from sent to frame, updating sent to match. sent holds every plane, laid out
+    // as in Frame. Returns false, leaving out and sent untouched, if there is nothing to send. out must
+    // have MAX_MESSAGE_BYTES free.
+    static boolean encodeFrame(Frame frame, long frameNumber, long[] sent, boolean reset, ByteBuffer out) {
+        int wordsPerRow = frame.getWordsPerRow();
+        int height = frame.getHeight();
+        int start = out.position();
+
+        if (reset) {
+            Arrays.fill(sent, 0);
+        }
+
+        out.position(start + 2 + HEADER_BYTES);
+        int changedRows = 0;
+
+        for (int plane = 0; plane < Frame.PLANES; plane++) {
+            for (int row = 0; row < height; row++) {
+                int offset = row * wordsPerRow;
+                int sentOffset = plane * Frame.MAX_WORDS + offset;
+                int mask = 0;
+                for (int word = 0; word < wordsPerRow; word++) {
+                    long changed = frame.getWord(plane, offset + word) ^ sent[sentOffset + word];
+                    for (int b = 0; b < 8; b++) {
+                        mask <<= 1;
+                        if (((changed >>> (56 - b * 8)) & 0xff) != 0) {
+                            mask |= 1;
+                        }
+                    }
+                }
+
+                if (mask == 0) {
+                    continue;
+                }
+
+                out.put((byte)(plane * PLANE_ROWS + row));
+                if (wordsPerRow == 2) {
+                    out.putShort((short)mask);
+                } else {
+                    out.put((byte)mask);
+                }
+
+                for (int word = 0; word < wordsPerRow; word++) {
+                    long pixels = frame.getWord(plane, offset + word);
+                    long changed = pixels ^ sent[sentOffset + word];
+                    for (int b = 0; b < 8; b++) {
+                        int value = (int)(changed >>> (56 - b * 8)) & 0xff;
+                        if (value != 0) {
+                            out.put((byte)value);
+                        }
+                    }
+
+                    sent[sentOffset + word] = pixels;
+                }
+
+                changedRows++;
+            }
+        }
+
+        if (changedRows == 0 && !reset) {
+            out.position(start);
+            return false;
+        }
+
+        int end = out.position();
+        out.putShort(start, (short)(end - start - 2));
+        out.put(start + 2, (byte)(reset ? FLAG_RESET : 0));
+        out.put(start + 3, (byte)wordsPerRow);
+        out.put(start + 4, (byte)height);
+        out.putInt(start + 5, (int)frameNumber);
+        out.put(start + 9, (byte)changedRows);
+        return true;
+    }
+
+    // Client side copy of a session's display, kept up to date by applying the host's frames
+    static final class Display {
+        private final long[] _pixels = new long[Frame.MAX_WORDS * Frame.PLANES];
+        private int _wordsPerRow = 1;
+        private int _height = 32;
+        private long _frameNumber;
+
+        int getWidth() {
+            return _wordsPerRow * 64;
+        }
+
+        int getHeight() {
+            return _height;
+        }
+
+        long getFrameNumber() {
+            return _frameNumber;
+        }
+
+        // A word of the first plane
+        long getWord(int index) {
+            return _pixels[index];
+        }
+
+        long getWord(int plane, int index) {
+            return _pixels[plane * Frame.MAX_WORDS + index];
+        }
+
+        // Applies one frame payload (without its length prefix)
+        void apply(ByteBuffer in) {
+            int flags = in.get() & 0xff;
+            _wordsPerRow = in.get() & 0xff;
+            _height = in.get() & 0xff;
+            _frameNumber = in.getInt() & 0xffffffffL;
+            int changedRows = in.get() & 0xff;
+
+            if ((flags & FLAG_RESET) != 0) {
+                Arrays.fill(_pixels, 0);
+            }
+
+            for (int i = 0; i < changedRows; i++) {
+                int row = in.get() & 0xff;
+                int offset = row / PLANE_ROWS * Frame.MAX_WORDS + row % PLANE_ROWS * _wordsPerRow;
+                int mask = _wordsPerRow == 2 ? in.getShort() & 0xffff : in.get() & 0xff;
+                int bit = _wordsPerRow * 8 - 1;
+
+                for (int word = 0; word < _wordsPerRow; word++) {
+                    long changed = 0;
+                    for (int b = 0; b < 8; b++, bit--) {
+                        if ((mask >>> bit & 1) != 0) {
+                            changed |= (long)(in.get() & 0xff) << (56 - b * 8);
+                        }
+                    }
+
+                    _pixels[offset + word] ^= changed;
+                }
+            }
+        }
+    }
+}
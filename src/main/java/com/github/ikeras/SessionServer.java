@@ -0,0 +1,191 @@
+package com.github.ikeras;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Accepts loopback connections, opens a Session for each on the ROM the client asks for, and hands
+// it to the least loaded SessionWorker. Also keeps the running totals behind SessionHost's reports.
+final class SessionServer {
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+    private static final long NANOS_PER_FRAME = 1_000_000_000L / Scheduler.FRAMES_PER_SECOND;
+
+    private final Map<String, Path> _roms = new LinkedHashMap<>();
+    private final SessionWorker[] _workers;
+    private final Thread[] _workerThreads;
+    private final int _instructionsPerSecond;
+    private final boolean _useRecompiler;
+    private final ServerSocketChannel _server;
+    private final com.sun.management.ThreadMXBean _threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    // Written by the accepting thread
+    private volatile int _sessionsOpened;
+    private volatile long _setupBytes;
+
+    // Totals at the previous report, for the rates in the next one
+    private long _lastReportTime = System.nanoTime();
+    private long _lastFrames;
+    private long _lastNanos;
+    private long _lastBytesSent;
+    private long _lastCpuNanos;
+
+    SessionServer(List<Path> roms, int port, int threads, int instructionsPerSecond, boolean useRecompiler) throws IOException {
+        for (Path rom : roms) {
+            _roms.put(rom.getFileName().toString(), rom);
+        }
+
+        _instructionsPerSecond = instructionsPerSecond;
+        _useRecompiler = useRecompiler;
+        _workers = new SessionWorker[threads];
+        _workerThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            _workers[i] = new SessionWorker();
+            _workerThreads[i] = new Thread(_workers[i], "utz-session-worker-" + i);
+            _workerThreads[i].setDaemon(true);
+        }
+
+        _server = ServerSocketChannel.open();
+        _server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    // Starts the workers and accepts connections on a daemon thread
+    void start() {
+        for (Thread thread : _workerThreads) {
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(this::acceptConnections, "utz-session-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void stop() throws IOException {
+        for (SessionWorker worker : _workers) {
+            worker.stop();
+        }
+
+        _server.close();
+    }
+
+    int getPort() throws IOException {
+        return ((InetSocketAddress)_server.getLocalAddress()).getPort();
+    }
+
+    List<String> getRomNames() {
+        return new ArrayList<>(_roms.keySet());
+    }
+
+    // Summarizes the time since the previous report
+    synchronized String report() {
+        long now = System.nanoTime();
+        int sessions = 0;
+        long frames = 0;
+        long nanos = 0;
+        long bytesSent = 0;
+        long framesHeld = 0;
+        long lateTicks = 0;
+        long droppedTicks = 0;
+        long cpuNanos = 0;
+
+        for (int i = 0; i < _workers.length; i++) {
+            SessionWorker worker = _workers[i];
+            worker.getPasses();
+            sessions += worker.getSessionCount();
+            frames += worker.getFrames();
+            nanos += worker.getNanos();
+            bytesSent += worker.getBytesSent();
+            framesHeld += worker.getFramesHeld();
+            lateTicks += worker.getLateTicks();
+            droppedTicks += worker.getDroppedTicks();
+            cpuNanos += Math.max(0, _threads.getThreadCpuTime(_workerThreads[i].getId()));
+        }
+
+        double seconds = (now - _lastReportTime) / 1e9;
+        long windowFrames = frames - _lastFrames;
+        double nanosPerFrame = windowFrames == 0 ? 0 : (nanos - _lastNanos) / (double)windowFrames;
+        double busy = (cpuNanos - _lastCpuNanos) / 1e9 / seconds / _workers.length;
+        double bytesPerSession = sessions == 0 ? 0 : (bytesSent - _lastBytesSent) / seconds / sessions;
+        int opened = _sessionsOpened;
+
+        _lastReportTime = now;
+        _lastFrames = frames;
+        _lastNanos = nanos;
+        _lastBytesSent = bytesSent;
+        _lastCpuNanos = cpuNanos;
+
+        return String.format("%d sessions, %.0f frames/s, %.1fus per session frame, workers %.0f%% busy, %.2f KB/s out per session, %d frames held, %d late and %d dropped ticks, %.1f KB allocated per session set up, ~%d sessions per core at real time",
+            sessions, windowFrames / seconds, nanosPerFrame / 1000, busy * 100, bytesPerSession / 1024, framesHeld, lateTicks, droppedTicks,
+            opened == 0 ? 0 : _setupBytes / 1024.0 / opened, nanosPerFrame == 0 ? 0 : (long)(NANOS_PER_FRAME / nanosPerFrame));
+    }
+
+    // Runs until the server is closed. The hello is read with a blocking timeout, after which the
+    // socket belongs to the session's worker.
+    private void acceptConnections() {
+        while (_server.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = _server.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            try {
+                openSession(channel);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Rejected connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    // Already going away
+                }
+            }
+        }
+    }
+
+    private void openSession(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.socket().setSoTimeout(HELLO_TIMEOUT_MILLIS);
+        String romName = new DataInputStream(channel.socket().getInputStream()).readUTF();
+
+        Path rom = _roms.get(romName);
+        if (rom == null) {
+            throw new IOException("Unknown ROM " + romName);
+        }
+
+        // Counts everything a session holds on to plus the garbage from reading the ROM, which is
+        // small next to the decode table and display buffers
+        long threadId = Thread.currentThread().getId();
+        long before = _threads.getThreadAllocatedBytes(threadId);
+
+        // Each session runs with the profile for the platform its ROM is detected as, as Chip does,
+        // and is loaded from the same bytes
+        byte[] bytes = Files.readAllBytes(rom);
+        QuirkProfile quirks = QuirkProfile.forPlatform(Platform.detect(bytes));
+        Emulator emulator = new Emulator(_useRecompiler, quirks);
+        emulator.loadRom(rom.toString(), bytes);
+        Session session = new Session(_sessionsOpened + 1, romName, emulator, channel, _instructionsPerSecond);
+
+        _setupBytes += _threads.getThreadAllocatedBytes(threadId) - before;
+        _sessionsOpened++;
+
+        SessionWorker leastLoaded = _workers[0];
+        for (SessionWorker worker : _workers) {
+            if (worker.getSessionCount() < leastLoaded.getSessionCount()) {
+                leastLoaded = worker;
+            }
+        }
+
+        leastLoaded.add(session);
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.ikeras;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// A pool thread that owns a share of the host's sessions and ticks every one of them once per 60Hz
+// frame, against System.nanoTime() deadlines in the same way as the Scheduler. If a pass runs over
+// its frame the next one starts straight away; past MAX_CATCH_UP_FRAMES behind the missed ticks are
+// dropped, which every session on the worker then sees as a slow frame.
+//
+// Totals are kept per session by this thread and summed into plain fields after each pass, ending
+// with a volatile write of the pass count that readers on other threads should read first.
+final class SessionWorker implements Runnable {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final int MAX_CATCH_UP_FRAMES = 5;
+
+    private final Queue<Session> _added = new ConcurrentLinkedQueue<>();
+    private final List<Session> _sessions = new ArrayList<>();
+    private final AtomicInteger _sessionCount = new AtomicInteger();
+    private volatile boolean _isRunning = true;
+
+    // Totals of sessions that have ended, so the reported totals never go backwards
+    private long _endedFrames;
+    private long _endedNanos;
+    private long _endedBytesSent;
+    private long _endedFramesHeld;
+
+    private long _frames;
+    private long _nanos;
+    private long _bytesSent;
+    private long _framesHeld;
+    private long _lateTicks;
+    private long _droppedTicks;
+    private volatile long _passes;
+
+    // Hands a session to this worker; it starts ticking from the next pass
+    void add(Session session) {
+        _sessionCount.incrementAndGet();
+        _added.add(session);
+    }
+
+    // Includes sessions that have been added but not yet picked up, so new sessions spread evenly
+    int getSessionCount() {
+        return _sessionCount.get();
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        long frame = 0;
+
+        while (_isRunning) {
+            long now = System.nanoTime();
+            long deadline = start + frame * NANOS_PER_SECOND / Scheduler.FRAMES_PER_SECOND;
+            if (now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                continue;
+            }
+
+            long framesBehind = (now - deadline) * Scheduler.FRAMES_PER_SECOND / NANOS_PER_SECOND;
+            if (framesBehind > MAX_CATCH_UP_FRAMES) {
+                _droppedTicks += framesBehind;
+                frame += framesBehind;
+            } else if (framesBehind > 0) {
+                _lateTicks++;
+            }
+
+            frame++;
+            tickSessions();
+        }
+
+        for (Session session : _sessions) {
+            session.close();
+        }
+    }
+
+    void stop() {
+        _isRunning = false;
+    }
+
+    long getPasses() {
+        return _passes;
+    }
+
+    long getFrames() {
+        return _frames;
+    }
+
+    long getNanos() {
+        return _nanos;
+    }
+
+    long getBytesSent() {
+        return _bytesSent;
+    }
+
+    long getFramesHeld() {
+        return _framesHeld;
+    }
+
+    long getLateTicks() {
+        return _lateTicks;
+    }
+
+    long getDroppedTicks() {
+        return _droppedTicks;
+    }
+
+    private void tickSessions() {
+        Session added;
+        while ((added = _added.poll()) != null) {
+            _sessions.add(added);
+        }
+
+        for (int i = 0; i < _sessions.size(); i++) {
+            Session session = _sessions.get(i);
+            if (!session.tick()) {
+                _endedFrames += session.getFrames();
+                _endedNanos += session.getNanos();
+                _endedBytesSent += session.getBytesSent();
+                _endedFramesHeld += session.getFramesHeld();
+
+                // Order doesn't matter, so fill the gap from the end
+                _sessions.set(i, _sessions.get(_sessions.size() - 1));
+                _sessions.remove(_sessions.size() - 1);
+                _sessionCount.decrementAndGet();
+                i--;
+            }
+        }
+
+        long frames = _endedFrames;
+        long nanos = _endedNanos;
+        long bytesSent = _endedBytesSent;
+        long framesHeld = _endedFramesHeld;
+        for (Session session : _sessions) {
+            frames += session.getFrames();
+            nanos += session.getNanos();
+            bytesSent += session.getBytesSent();
+            framesHeld += session.getFramesHeld();
+        }
+
+        _frames = frames;
+        _nanos = nanos;
+        _bytesSent = bytesSent;
+        _framesHeld = framesHeld;
+        _passes++;
+    }
+}
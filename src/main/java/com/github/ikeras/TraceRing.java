@@ -0,0 +1,123 @@
+package com.github.ikeras;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+// The last LENGTH control transfers the CPU made (jumps, calls, returns and taken skips), kept so a
+// failure comes with the history that led up to it. The instructions between two transfers always
+// run in sequence, so recording only the transfers is enough to rebuild the instruction trace while
+// leaving straight-line code untouched. Each entry packs the transferring instruction's address, its
+// target, I and the instruction's opcode (16 bits each) into one long in a preallocated ring; unused
+// slots hold EMPTY. Writes to memory are recorded the same way, as a transfer to the next
+// instruction, so the dump can tell which of the instructions it rebuilds from memory have been
+// overwritten since they ran. The CPU only records a transfer that differs from the one before it,
+// so a loop spinning on a jump or waiting on a timer doesn't wash out the history. Only used on the
+// emulation thread.
+final class TraceRing {
+    static final int LENGTH = 256;
+    private static final int MASK = LENGTH - 1;
+    private static final long EMPTY = -1;
+    // Straight-line runs can be long, so the dump stops after this many lines
+    private static final int MAX_LINES = 512;
+
+    private final long[] _entries = new long[LENGTH];
+    private int _next;
+    private int _start;
+
+    void record(int address, int target, int i, int opcode) {
+        _entries[_next] = (((long)address << 16 | target) << 16 | i) << 16 | opcode;
+        _next = (_next + 1) & MASK;
+    }
+
+    // Forgets the history, as after a reset or a restored state execution continues from pc
+    void clear(int pc) {
+        Arrays.fill(_entries, EMPTY);
+        _next = 0;
+        _start = pc;
+    }
+
+    // Disassembles the instructions that ran up to (not including) pc, oldest first. Transfers and
+    // writes show the opcode that ran; the instructions between them come from memory as it is now,
+    // unless a later write has changed them.
+    String dump(CPU cpu) {
+        Deque<String> lines = new ArrayDeque<>();
+        // Addresses written after the point the walk back has reached
+        BitSet overwritten = new BitSet();
+        int end = cpu.getPc();
+        int index = _next;
+        int remaining = LENGTH;
+
+        while (remaining > 0 && lines.size() < MAX_LINES) {
+            index = (index - 1) & MASK;
+            remaining--;
+            long entry = _entries[index];
+            if (entry == EMPTY) {
+                // Everything since the ring was cleared is still here
+                addRun(lines, cpu, overwritten, _start, end);
+                break;
+            }
+
+            int address = (int)(entry >>> 48);
+            int target = (int)(entry >>> 32) & 0xffff;
+            int i = (int)(entry >>> 16) & 0xffff;
+            int opcode = (int)entry & 0xffff;
+            addRun(lines, cpu, overwritten, target, end);
+
+            int written = writeLength(cpu, opcode);
+            if (written > 0) {
+                lines.addFirst(String.format("%-33s    I=0x%03X", describe(cpu, address, opcode), i));
+                for (int offset = 0; offset < written; offset++) {
+                    overwritten.set((i + offset) & (cpu._memory.length - 1));
+                }
+            } else {
+                lines.addFirst(String.format("%-33s -> 0x%03X  I=0x%03X", describe(cpu, address, opcode), target, i));
+            }
+
+            end = address;
+        }
+
+        StringBuilder trace = new StringBuilder();
+        trace.append(String.format("Last %d instructions executed, oldest first:%n", lines.size()));
+        for (String line : lines) {
+            trace.append(line).append(System.lineSeparator());
+        }
+
+        return trace.toString();
+    }
+
+    // Adds the instructions from start up to end, last first, ahead of the lines already there. A
+    // run can carry on past the end of memory to the start.
+    private static void addRun(Deque<String> lines, CPU cpu, BitSet overwritten, int start, int end) {
+        int mask = cpu._memory.length - 1;
+        for (int address = (end - 2) & mask, n = ((end - start) & mask) / 2; n > 0 && lines.size() < MAX_LINES; address = (address - 2) & mask, n--) {
+            if (overwritten.get(address) || overwritten.get((address + 1) & mask)) {
+                lines.addFirst(String.format("  0x%03X  ????  overwritten since it ran", address));
+            } else {
+                int decoded = cpu.getDecodedInstruction(address);
+                lines.addFirst(describe(cpu, address, decoded & 0xffff));
+            }
+        }
+    }
+
+    // The number of bytes an instruction writes from I, or 0 if it doesn't write to memory
+    private static int writeLength(CPU cpu, int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        switch (cpu.decodeInstruction(opcode) >>> 16) {
+            case CPU.OP_LD_B:
+                return 3;
+            case CPU.OP_LD_MEMORY_VX:
+                return x + 1;
+            case CPU.OP_SAVE_RANGE:
+                return Math.abs(y - x) + 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static String describe(CPU cpu, int address, int opcode) {
+        return String.format("  0x%03X  %04X  %s", address, opcode, Disassembler.disassemble(cpu.decodeInstruction(opcode)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.ikeras;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Streams frames of palette indices into an animated image file. A frame is the rows of a
+// CANVAS_WIDTH x CANVAS_HEIGHT canvas that changed since the last one written, each canvas pixel
+// drawn as a scale x scale block, shown from one 60Hz frame to another counted from the start of the
+// video. Only used on VideoRecorder's encoder thread.
+abstract class VideoEncoder implements Closeable {
+    static final int CANVAS_WIDTH = 128;
+    static final int CANVAS_HEIGHT = 64;
+    static final int MAX_SCALE = 8;
+
+    final int _scale;
+
+    VideoEncoder(int scale) {
+        if (scale < 1 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Video scale must be between 1 and " + MAX_SCALE);
+        }
+
+        _scale = scale;
+    }
+
+    // The format comes from the file's extension
+    static VideoEncoder open(Path path, Palette palette, int scale) throws IOException {
+        String name = path.getFileName().toString().toLowerCase();
+        if (name.endsWith(".gif")) {
+            return new GifEncoder(path, palette, scale);
+        } else if (name.endsWith(".png") || name.endsWith(".apng")) {
+            return new ApngEncoder(path, palette, scale);
+        }
+
+        throw new IllegalArgumentException("Unknown video format " + path + ", expected a .gif, .png or .apng file");
+    }
+
+    // Whether a frame shown from start to end can be written on its own. If not, the recorder drops it
+    // and the next frame takes over its start.
+    abstract boolean accepts(long start, long end);
+
+    // The most frames a single image can be shown for
+    abstract long getMaxFrames();
+
+    abstract void writeFrame(byte[] canvas, int firstRow, int lastRow, long start, long end) throws IOException;
+}
@@ -0,0 +1,224 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Records the frames the emulator shows to an animated GIF or PNG without holding up emulation. The
+// emulation thread compares each shown frame with the last one it kept, so an unchanged picture costs a
+// compare however long it stays up, and copies one that changed, still packed, into a preallocated ring
+// of SLOTS frames. A daemon thread takes frames from the ring, renders them onto a canvas of palette
+// indices and hands the encoder the band of rows that differ from what it wrote last, shown until the
+// next frame in the ring, so memory stays the same however long the recording runs. Times are counted
+// in emulated 60Hz frames, each shown frame taking one whatever it was (rewinding included).
+// When the encoder falls behind and the ring is full, a live session drops the frame, which only
+// leaves the previous one up longer, while a headless run waits for a free slot.
+final class VideoRecorder {
+    static final int SLOTS = 64;
+    private static final int MASK = SLOTS - 1;
+    private static final int SLOT_WORDS = Frame.MAX_WORDS * Frame.PLANES;
+    private static final int CANVAS_WIDTH = VideoEncoder.CANVAS_WIDTH;
+    private static final int CANVAS_SIZE = VideoEncoder.CANVAS_WIDTH * VideoEncoder.CANVAS_HEIGHT;
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private final VideoEncoder _encoder;
+    private final boolean _isWaiting;
+    private final long[][] _slots = new long[SLOTS][SLOT_WORDS];
+    private final int[] _widths = new int[SLOTS];
+    private final long[] _times = new long[SLOTS];
+    // Frames put in and taken out since the start; only the emulation thread sets _written, only the
+    // encoder thread _read
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _read = new AtomicLong();
+    private final Thread _thread;
+    private volatile boolean _isRunning = true;
+    private volatile long _endTime;
+    private volatile Exception _failure;
+
+    // Emulation thread: the current frame's time and the last frame put in the ring
+    private long _time = -1;
+    private final long[] _last = new long[SLOT_WORDS];
+    private int _lastWidth;
+    private int _lastHeight;
+    private long _dropped;
+
+    // Encoder thread: the frame waiting for the next one to say how long it lasts, and what the video
+    // shows so far
+    private final byte[] _pending = new byte[CANVAS_SIZE];
+    private final byte[] _shown = new byte[CANVAS_SIZE];
+    private long _pendingStart = -1;
+    private long _startTime;
+    private boolean _hasShown;
+
+    // With wait set, a full ring holds up emulation instead of dropping frames
+    VideoRecorder(Path path, Palette palette, int scale, boolean wait) throws IOException {
+        _encoder = VideoEncoder.open(path, palette, scale);
+        _isWaiting = wait;
+
+        _thread = new Thread(this::encode, "video");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // Emulation thread, once at the start of every frame
+    void nextFrame() {
+        _time++;
+    }
+
+    // Emulation thread: the frame being shown
+    void capture(CPU cpu) {
+        int width = cpu.getDisplayWidth();
+        int height = cpu.getDisplayHeight();
+        int words = height * (width >>> 6);
+        long[] display = cpu._display;
+
+        if (width == _lastWidth && height == _lastHeight && isUnchanged(display, words)) {
+            return;
+        }
+
+        long written = _written.getPlain();
+        while (written - _read.getAcquire() == SLOTS) {
+            if (!_isWaiting || _failure != null) {
+                _dropped++;
+                return;
+            }
+
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+
+        int slot = (int)written & MASK;
+        for (int plane = 0; plane < display.length; plane += Frame.MAX_WORDS) {
+            System.arraycopy(display, plane, _slots[slot], plane, words);
+            System.arraycopy(display, plane, _last, plane, words);
+        }
+
+        _widths[slot] = width;
+        _times[slot] = _time;
+        _lastWidth = width;
+        _lastHeight = height;
+        _written.setRelease(written + 1);
+    }
+
+    // Emulation thread, or after it has finished: the last frame shown lasts to the end of the current
+    // one. Waits for the encoder to finish the file, and returns the number of frames dropped.
+    long close() throws IOException {
+        _endTime = _time + 1;
+        _isRunning = false;
+
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing the video", e);
+        }
+
+        if (_failure != null) {
+            throw new IOException("Unable to write video: " + _failure.getMessage(), _failure);
+        }
+
+        return _dropped;
+    }
+
+    private boolean isUnchanged(long[] display, int words) {
+        for (int plane = 0; plane < display.length; plane += Frame.MAX_WORDS) {
+            if (!Arrays.equals(display, plane, plane + words, _last, plane, plane + words)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void encode() {
+        try (_encoder) {
+            while (true) {
+                // Read before looking at the ring, so frames put in before close are still taken
+                boolean isRunning = _isRunning;
+                long read = _read.getPlain();
+
+                if (read < _written.getAcquire()) {
+                    int slot = (int)read & MASK;
+                    show(_times[slot]);
+                    render(_slots[slot], _widths[slot]);
+                    _read.setRelease(read + 1);
+                } else if (isRunning) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                } else {
+                    break;
+                }
+            }
+
+            if (_pendingStart >= 0) {
+                writePending(_endTime);
+            }
+        } catch (IOException | RuntimeException e) {
+            _failure = e;
+        }
+    }
+
+    // A new frame goes up at time, which ends the pending one unless the encoder can't show it that
+    // briefly, in which case the new frame replaces it from its start
+    private void show(long time) throws IOException {
+        if (_pendingStart < 0) {
+            _startTime = time;
+            _pendingStart = time;
+        } else if (_encoder.accepts(_pendingStart - _startTime, time - _startTime)) {
+            writePending(time);
+            _pendingStart = time;
+        }
+    }
+
+    // Writes the rows that changed, or the whole canvas for the first frame. A band can only be shown for
+    // so long, so a long still is written again as one unchanged row until the time is used up.
+    private void writePending(long end) throws IOException {
+        int firstRow = 0;
+        int lastRow = VideoEncoder.CANVAS_HEIGHT - 1;
+        if (_hasShown) {
+            while (firstRow < lastRow && isRowShown(firstRow)) {
+                firstRow++;
+            }
+
+            while (lastRow > firstRow && isRowShown(lastRow)) {
+                lastRow--;
+            }
+        }
+
+        long start = _pendingStart - _startTime;
+        long stop = end - _startTime;
+        long maxFrames = _encoder.getMaxFrames();
+        while (stop - start > maxFrames) {
+            _encoder.writeFrame(_pending, firstRow, lastRow, start, start + maxFrames);
+            start += maxFrames;
+            firstRow = 0;
+            lastRow = 0;
+        }
+
+        _encoder.writeFrame(_pending, firstRow, lastRow, start, stop);
+        System.arraycopy(_pending, 0, _shown, 0, CANVAS_SIZE);
+        _hasShown = true;
+    }
+
+    private boolean isRowShown(int row) {
+        int offset = row * CANVAS_WIDTH;
+        return Arrays.equals(_pending, offset, offset + CANVAS_WIDTH, _shown, offset, offset + CANVAS_WIDTH);
+    }
+
+    // Unpacks the frame onto the canvas, doubling low resolution pixels. Each pixel holds its bit from
+    // plane n in bit n, as in CPU.getDisplay.
+    private void render(long[] pixels, int width) {
+        int wordsPerRow = width >>> 6;
+        int factor = CANVAS_WIDTH / width;
+
+        for (int row = 0, index = 0; row < VideoEncoder.CANVAS_HEIGHT; row++) {
+            int offset = (row / factor) * wordsPerRow;
+            for (int column = 0; column < CANVAS_WIDTH; column++, index++) {
+                int x = column / factor;
+                int word = offset + (x >>> 6);
+                int shift = 63 - (x & 63);
+                _pending[index] = (byte)((pixels[word] >>> shift & 1) | (pixels[Frame.MAX_WORDS + word] >>> shift & 1) << 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.ikeras;
+
+// The original COSMAC VIP interpreter: 8xy6 and 8xyE shift Vy into Vx, 8xy1, 8xy2 and 8xy3 clear
+// VF, and Fx55 and Fx65 leave I just past the last register they touched
+final class VipCPU extends CPU {
+    VipCPU(byte[] memory) {
+        super(memory);
+    }
+
+    @Override
+    void opOr(int opcode) {
+        super.opOr(opcode);
+        _registers[0xf] = 0;
+    }
+
+    @Override
+    void opAnd(int opcode) {
+        super.opAnd(opcode);
+        _registers[0xf] = 0;
+    }
+
+    @Override
+    void opXor(int opcode) {
+        super.opXor(opcode);
+        _registers[0xf] = 0;
+    }
+
+    @Override
+    void opShr(int opcode) {
+        int value = _registers[(opcode >> 4) & 0x0f];
+        _registers[(opcode >> 8) & 0x0f] = (short)(value >> 1);
+        _registers[0xf] = (short)(value & 0x1);
+    }
+
+    @Override
+    void opShl(int opcode) {
+        int value = _registers[(opcode >> 4) & 0x0f];
+        _registers[(opcode >> 8) & 0x0f] = (short)((value << 1) & 0xff);
+        _registers[0xf] = (short)(value >> 0x7);
+    }
+
+    @Override
+    void opLdMemoryVx(int opcode) {
+        super.opLdMemoryVx(opcode);
+        _i = (_i + ((opcode >> 8) & 0x0f) + 1) & 0xfff;
+    }
+
+    @Override
+    void opLdVxMemory(int opcode) {
+        super.opLdVxMemory(opcode);
+        _i = (_i + ((opcode >> 8) & 0x0f) + 1) & 0xfff;
+    }
+}
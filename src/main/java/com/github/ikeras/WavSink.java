@@ -0,0 +1,78 @@
+package com.github.ikeras;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Writes the emulator's sound to a WAV file instead of a device, so audio can be checked headless.
+// Frames are AudioGenerator.SAMPLES_PER_FRAME samples each, so sample n belongs to frame
+// n / SAMPLES_PER_FRAME. The header's sizes are filled in on close.
+final class WavSink implements AudioSink {
+    private static final int HEADER_SIZE = 44;
+
+    private final FileChannel _channel;
+    private final ByteBuffer _buffer = ByteBuffer.allocate(64 * 1024);
+    private long _dataSize;
+
+    WavSink(Path path) throws IOException {
+        _channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        _channel.write(header(0));
+    }
+
+    @Override
+    public void write(byte[] samples, int count) {
+        if (_buffer.remaining() < count) {
+            flush();
+        }
+
+        _buffer.put(samples, 0, count);
+        _dataSize += count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            _channel.write(header(_dataSize), 0);
+        } finally {
+            _channel.close();
+        }
+    }
+
+    // The emulation thread can't do anything useful with an I/O error mid-frame, so rethrow unchecked
+    private void flush() {
+        _buffer.flip();
+        try {
+            while (_buffer.hasRemaining()) {
+                _channel.write(_buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write audio", e);
+        }
+
+        _buffer.clear();
+    }
+
+    // Canonical 44-byte RIFF header for 8-bit unsigned mono PCM
+    private static ByteBuffer header(long dataSize) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952); // "RIFF"
+        header.putInt((int)(36 + dataSize));
+        header.putInt(0x45564157); // "WAVE"
+        header.putInt(0x20746d66); // "fmt "
+        header.putInt(16);
+        header.putShort((short)1); // PCM
+        header.putShort((short)1); // mono
+        header.putInt(AudioGenerator.SAMPLE_RATE);
+        header.putInt(AudioGenerator.SAMPLE_RATE); // bytes per second
+        header.putShort((short)1); // bytes per sample
+        header.putShort((short)8); // bits per sample
+        header.putInt(0x61746164); // "data"
+        header.putInt((int)dataSize);
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,327 @@
+package com.github.ikeras;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// XO-CHIP, as implemented by Octo: 64KB of memory with a 16-bit I, two display planes, an audio
+// pattern and pitch, and the instructions for them. Each plane is a whole packed display, so drawing,
+// scrolling and clearing go a word at a time over whichever planes are selected. Shifts read Vy,
+// Fx55 and Fx65 advance I, and sprites wrap around the screen edges instead of being clipped.
+final class XoChipCPU extends CPU {
+    static final int MEMORY_SIZE = 64 * 1024;
+    private static final int PLANES = Frame.PLANES;
+    private static final int AUDIO_PATTERN_SIZE = 16;
+    // Octo's starting pitch, which plays the pattern at 4000 samples a second
+    private static final int DEFAULT_PITCH = 64;
+    // Plane mask, pitch and the audio pattern, padded to keep the display words aligned
+    private static final int EXTRA_STATE_SIZE = 4 + AUDIO_PATTERN_SIZE;
+
+    private final byte[] _audioPattern = new byte[AUDIO_PATTERN_SIZE];
+    private int _planeMask = 1;
+    private int _pitch = DEFAULT_PITCH;
+
+    XoChipCPU(byte[] memory) {
+        super(memory, PLANES);
+        if (memory.length != MEMORY_SIZE) {
+            throw new IllegalArgumentException("XO-CHIP needs " + MEMORY_SIZE + " bytes of memory, not " + memory.length);
+        }
+    }
+
+    // 5xy2, 5xy3 and 00Dn mean something else to the other interpreters
+    @Override
+    int decodeInstruction(int opcode) {
+        if ((opcode & 0xf00f) == 0x5002) {
+            return OP_SAVE_RANGE << 16 | opcode;
+        } else if ((opcode & 0xf00f) == 0x5003) {
+            return OP_LOAD_RANGE << 16 | opcode;
+        } else if ((opcode & 0xfff0) == 0x00d0) {
+            return OP_SCROLL_UP << 16 | opcode;
+        }
+
+        return decodeOpcode(opcode);
+    }
+
+    @Override
+    byte[] getAudioPattern() {
+        return _audioPattern;
+    }
+
+    @Override
+    int getPitch() {
+        return _pitch;
+    }
+
+    @Override
+    int getStateSize() {
+        return super.getStateSize() + EXTRA_STATE_SIZE;
+    }
+
+    @Override
+    void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put((byte)_planeMask);
+        buffer.put((byte)_pitch);
+        buffer.putShort((short)0);
+        buffer.put(_audioPattern);
+    }
+
+    @Override
+    void restoreState(ByteBuffer buffer) {
+        super.restoreState(buffer);
+        _planeMask = buffer.get() & 0x3;
+        _pitch = buffer.get() & 0xff;
+        buffer.getShort();
+        buffer.get(_audioPattern);
+    }
+
+    @Override
+    long getStateDigest() {
+        long hash = super.getStateDigest();
+        hash = (hash ^ _planeMask) * 0x100000001b3L;
+        hash = (hash ^ _pitch) * 0x100000001b3L;
+        for (byte value : _audioPattern) {
+            hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    // A skip steps over all four bytes of F000 nnnn
+    @Override
+    void skip() {
+        transfer((getDecodedInstruction(_pc) >>> 16 == OP_LD_I_LONG ? _pc + 4 : _pc + 2) & 0xffff);
+    }
+
+    @Override
+    void opCls(int opcode) {
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) != 0) {
+                Arrays.fill(_display, plane * Frame.MAX_WORDS, (plane + 1) * Frame.MAX_WORDS, 0L);
+            }
+        }
+
+        _dirtyRows = -1L;
+    }
+
+    @Override
+    void opScrollDown(int opcode) {
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) != 0) {
+                scrollDown(plane * Frame.MAX_WORDS, opcode & 0x0f);
+            }
+        }
+    }
+
+    @Override
+    void opScrollRight(int opcode) {
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) != 0) {
+                scrollRight(plane * Frame.MAX_WORDS);
+            }
+        }
+    }
+
+    @Override
+    void opScrollLeft(int opcode) {
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) != 0) {
+                scrollLeft(plane * Frame.MAX_WORDS);
+            }
+        }
+    }
+
+    @Override
+    void opScrollUp(int opcode) {
+        int wordsToMove = (opcode & 0x0f) * _wordsPerRow;
+        int displayWords = _displayHeight * _wordsPerRow;
+
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) != 0) {
+                int start = plane * Frame.MAX_WORDS;
+                System.arraycopy(_display, start + wordsToMove, _display, start, displayWords - wordsToMove);
+                Arrays.fill(_display, start + displayWords - wordsToMove, start + displayWords, 0L);
+            }
+        }
+
+        _dirtyRows = -1L;
+    }
+
+    @Override
+    void opShr(int opcode) {
+        int value = _registers[(opcode >> 4) & 0x0f];
+        _registers[(opcode >> 8) & 0x0f] = (short)(value >> 1);
+        _registers[0xf] = (short)(value & 0x1);
+    }
+
+    @Override
+    void opShl(int opcode) {
+        int value = _registers[(opcode >> 4) & 0x0f];
+        _registers[(opcode >> 8) & 0x0f] = (short)((value << 1) & 0xff);
+        _registers[0xf] = (short)(value >> 0x7);
+    }
+
+    @Override
+    void opAddI(int opcode) {
+        _i = (_i + _registers[(opcode >> 8) & 0x0f]) & 0xffff;
+    }
+
+    // Fx33, Fx55 and Fx65 wrap at the end of memory, as every other XO-CHIP access does
+    @Override
+    void opLdB(int opcode) {
+        traceWrite();
+        short value = _registers[(opcode >> 8) & 0x0f];
+        _memory[_i] = (byte)(value / 100);
+        _memory[(_i + 1) & 0xffff] = (byte)((value / 10) % 10);
+        _memory[(_i + 2) & 0xffff] = (byte)(value % 10);
+        invalidateWrapped(_i, 3);
+    }
+
+    @Override
+    void opLdMemoryVx(int opcode) {
+        traceWrite();
+        int count = ((opcode >> 8) & 0x0f) + 1;
+        for (int register = 0; register < count; register++) {
+            _memory[(_i + register) & 0xffff] = (byte)_registers[register];
+        }
+
+        invalidateWrapped(_i, count);
+        _i = (_i + count) & 0xffff;
+    }
+
+    @Override
+    void opLdVxMemory(int opcode) {
+        int count = ((opcode >> 8) & 0x0f) + 1;
+        for (int register = 0; register < count; register++) {
+            _registers[register] = (short)(_memory[(_i + register) & 0xffff] & 0xff);
+        }
+
+        _i = (_i + count) & 0xffff;
+    }
+
+    // 5xy2: stores Vx to Vy at I, in descending order if x > y, leaving I alone
+    @Override
+    void opSaveRange(int opcode) {
+        traceWrite();
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        int step = x <= y ? 1 : -1;
+        int count = Math.abs(y - x) + 1;
+
+        for (int offset = 0; offset < count; offset++) {
+            _memory[(_i + offset) & 0xffff] = (byte)_registers[x + offset * step];
+        }
+
+        invalidateWrapped(_i, count);
+    }
+
+    // 5xy3: loads Vx to Vy from I
+    @Override
+    void opLoadRange(int opcode) {
+        int x = (opcode >> 8) & 0x0f;
+        int y = (opcode >> 4) & 0x0f;
+        int step = x <= y ? 1 : -1;
+        int count = Math.abs(y - x) + 1;
+
+        for (int offset = 0; offset < count; offset++) {
+            _registers[x + offset * step] = (short)(_memory[(_i + offset) & 0xffff] & 0xff);
+        }
+    }
+
+    // F000 nnnn: the address follows the instruction, which the pc then steps over. Like every other
+    // access it wraps, so an F000 at 0xFFFE reads its address from the start of memory and carries on
+    // from there.
+    @Override
+    void opLdILong(int opcode) {
+        _i = (_memory[_pc & 0xffff] & 0xff) << 8 | (_memory[(_pc + 1) & 0xffff] & 0xff);
+        _pc = (_pc + 2) & 0xffff;
+    }
+
+    // Fn01: selects the planes that drawing, scrolling and clearing act on
+    @Override
+    void opPlane(int opcode) {
+        _planeMask = (opcode >> 8) & 0x3;
+    }
+
+    // F002: loads the 16-byte, 1-bit audio pattern from I
+    @Override
+    void opLdAudio(int opcode) {
+        for (int offset = 0; offset < AUDIO_PATTERN_SIZE; offset++) {
+            _audioPattern[offset] = _memory[(_i + offset) & 0xffff];
+        }
+    }
+
+    // Fx3A: the pattern plays at 4000 * 2^((Vx - 64) / 48) samples a second
+    @Override
+    void opLdPitch(int opcode) {
+        _pitch = _registers[(opcode >> 8) & 0x0f];
+    }
+
+    // invalidate stops at the end of memory, so the part of a write that wrapped round to the start is
+    // invalidated on its own
+    private void invalidateWrapped(int address, int length) {
+        int wrapped = address + length - MEMORY_SIZE;
+        if (wrapped > 0) {
+            invalidate(address, length - wrapped);
+            invalidate(0, wrapped);
+        } else {
+            invalidate(address, length);
+        }
+    }
+
+    // Draws the sprite into each selected plane in turn, the data for each plane following on from the
+    // previous one's. Rows are XORed in as in CPU.drawSprite, except that the part of a row past the
+    // right edge goes into the first word of the same row, and rows past the bottom start again at the
+    // top.
+    @Override
+    void drawSprite(int x, int y, int n) {
+        int xStart = _registers[x] & (_displayWidth - 1);
+        int yStart = _registers[y] & (_displayHeight - 1);
+
+        int spriteWidth = n == 0 ? 16 : 8;
+        int spriteHeight = n == 0 ? 16 : n;
+
+        int word = xStart >>> 6;
+        int shift = xStart & 63;
+        int spillWord = (word + 1) % _wordsPerRow;
+        boolean spills = shift + spriteWidth > 64;
+        int address = _i;
+        long collision = 0;
+        long dirtyRows = 0;
+
+        for (int plane = 0; plane < PLANES; plane++) {
+            if ((_planeMask & (1 << plane)) == 0) {
+                continue;
+            }
+
+            for (int row = 0; row < spriteHeight; row++) {
+                int spriteRowData;
+                if (n == 0) {
+                    spriteRowData = (_memory[address & 0xffff] & 0xff) << 8 | (_memory[(address + 1) & 0xffff] & 0xff);
+                    address += 2;
+                } else {
+                    spriteRowData = _memory[address & 0xffff] & 0xff;
+                    address++;
+                }
+
+                long aligned = (long)spriteRowData << (64 - spriteWidth);
+                int displayRow = (yStart + row) & (_displayHeight - 1);
+                int rowOffset = plane * Frame.MAX_WORDS + displayRow * _wordsPerRow;
+
+                long bits = aligned >>> shift;
+                collision |= _display[rowOffset + word] & bits;
+                _display[rowOffset + word] ^= bits;
+
+                if (spills) {
+                    long spill = aligned << (64 - shift);
+                    collision |= _display[rowOffset + spillWord] & spill;
+                    _display[rowOffset + spillWord] ^= spill;
+                }
+
+                dirtyRows |= 1L << displayRow;
+            }
+        }
+
+        _registers[0xf] = (short)(collision != 0 ? 1 : 0);
+        _dirtyRows |= dirtyRows;
+    }
+}
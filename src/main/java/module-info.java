@@ -2,6 +2,9 @@ module com.github.ikeras {
     requires javafx.controls;
     requires transitive javafx.graphics;
     requires commons.cli;
+    requires java.desktop;
+    requires java.management;
+    requires jdk.management;
 
     exports com.github.ikeras;
 }